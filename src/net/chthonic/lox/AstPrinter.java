@@ -4,8 +4,8 @@ import java.util.Arrays;
 import java.util.stream.Collectors;
 
 // Creates an unambiguous, if lispy, string representation of AST nodes.
-class AstPrinter implements Expr.Visitor<String> {
-    String print(Expr expr) {
+public class AstPrinter implements Expr.Visitor<String> {
+    public String print(Expr expr) {
         return expr.accept(this);
     }
 
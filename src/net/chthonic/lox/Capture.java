@@ -0,0 +1,13 @@
+package net.chthonic.lox;
+
+// One variable a closure takes with it: where it is, counting out from the
+// scope the closure is created in. See Environment.capture.
+class Capture {
+    final int depth;
+    final int slot;
+
+    Capture(int depth, int slot) {
+        this.depth = depth;
+        this.slot = slot;
+    }
+}
@@ -0,0 +1,11 @@
+package net.chthonic.lox;
+
+// A captured local that something assigns to lives in one of these, so the
+// scope it was declared in and every closure that captured it share it.
+class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,446 @@
+package net.chthonic.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* Just enough of a class file assembler for the JIT. It writes version 49
+   class files, which the JVM still verifies by type inference, so there are
+   no stack map frames to compute; it does keep track of the operand stack
+   depth so it can fill in max_stack.
+ */
+class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int DCONST_0 = 0x0e;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP_X2 = 0x5b;
+    static final int DUP2 = 0x5c;
+    static final int DUP2_X1 = 0x5d;
+    static final int DUP2_X2 = 0x5e;
+    static final int DADD = 0x63;
+    static final int DSUB = 0x67;
+    static final int DMUL = 0x6b;
+    static final int DDIV = 0x6f;
+    static final int DNEG = 0x77;
+    static final int IXOR = 0x82;
+    static final int DCMPL = 0x97;
+    static final int DCMPG = 0x98;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int IFNONNULL = 0xc7;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final String name;
+    private final String superName;
+    private final List<String> interfaces;
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassWriter(String name, String superName, List<String> interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+    }
+
+    void field(int access, String fieldName, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(fieldName));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String methodName, String descriptor, int parameterSlots) {
+        Code code = new Code(access, methodName, descriptor, parameterSlots);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            // Everything that refers to the constant pool has to be added
+            // before the pool is written out.
+            int thisClass = classRef(name);
+            int superClass = classRef(superName);
+            List<Integer> interfaceRefs = new ArrayList<>();
+            for (String iface : interfaces) interfaceRefs.add(classRef(iface));
+            List<byte[]> methodBytes = new ArrayList<>();
+            for (Code method : methods) methodBytes.add(method.toByteArray());
+
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.size());
+            for (int ref : interfaceRefs) out.writeShort(ref);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methodBytes.size());
+            for (byte[] method : methodBytes) out.write(method);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int utf8(String text) {
+        Integer index = poolIndex.get("U" + text);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(text);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        poolIndex.put("U" + text, poolCount);
+        return poolCount++;
+    }
+
+    private int integer(int value) {
+        Integer index = poolIndex.get("I" + value);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        poolIndex.put("I" + value, poolCount);
+        return poolCount++;
+    }
+
+    private int doubleConstant(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        Integer index = poolIndex.get("D" + bits);
+        if (index != null) return index;
+        try {
+            pool.writeByte(CONSTANT_DOUBLE);
+            pool.writeLong(bits);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        poolIndex.put("D" + bits, poolCount);
+        // A double takes up two entries in the pool.
+        int result = poolCount;
+        poolCount += 2;
+        return result;
+    }
+
+    private int classRef(String className) {
+        Integer index = poolIndex.get("C" + className);
+        if (index != null) return index;
+        int nameIndex = utf8(className);
+        try {
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(nameIndex);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        poolIndex.put("C" + className, poolCount);
+        return poolCount++;
+    }
+
+    private int memberRef(int tag, String owner, String memberName, String descriptor) {
+        String key = tag + owner + "." + memberName + ":" + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(memberName);
+        int descriptorIndex = utf8(descriptor);
+        try {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+            int nameAndType = poolCount++;
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // Operand stack slots taken by a descriptor's parameters (first) and
+    // return value (second).
+    private static int[] slots(String descriptor) {
+        int parameters = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                parameters += 2;
+                i++;
+            } else {
+                parameters++;
+                while (descriptor.charAt(i) == '[') i++;
+                if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+                i++;
+            }
+        }
+        char ret = descriptor.charAt(i + 1);
+        int returns = ret == 'V' ? 0 : (ret == 'J' || ret == 'D') ? 2 : 1;
+        return new int[] { parameters, returns };
+    }
+
+    // Thrown when a method doesn't fit in a class file: its code is over
+    // 64K, or a branch is too far to encode.
+    static class TooLarge extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge(String message) {
+            super(message);
+        }
+    }
+
+    static class Label {
+        private int position = -1;
+        private int stack = -1;
+        private final List<Integer> fixups = new ArrayList<>();
+    }
+
+    class Code {
+        private final int access;
+        private final String methodName;
+        private final String descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+        // Labels that may be jumped to before they are marked.
+        private final List<Label> labels = new ArrayList<>();
+
+        private Code(int access, String methodName, String descriptor, int parameterSlots) {
+            this.access = access;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.maxLocals = parameterSlots;
+        }
+
+        Label label() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void op(int opcode, int stackEffect) {
+            code.write(opcode);
+            adjust(stackEffect);
+        }
+
+        void aload(int local) {
+            code.write(ALOAD);
+            code.write(local);
+            useLocal(local);
+            adjust(1);
+        }
+
+        void astore(int local) {
+            code.write(ASTORE);
+            code.write(local);
+            useLocal(local);
+            adjust(-1);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                code.write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                writeShort(value);
+            } else {
+                code.write(LDC_W);
+                writeShort(integer(value));
+            }
+            adjust(1);
+        }
+
+        void dconst(double value) {
+            if (Double.doubleToRawLongBits(value) == 0 || value == 1.0) {
+                code.write(DCONST_0 + (int)value);
+            } else {
+                code.write(LDC2_W);
+                writeShort(doubleConstant(value));
+            }
+            adjust(2);
+        }
+
+        void type(int opcode, String className) {
+            code.write(opcode);
+            writeShort(classRef(className));
+        }
+
+        void field(int opcode, String owner, String fieldName, String fieldDescriptor) {
+            code.write(opcode);
+            writeShort(memberRef(CONSTANT_FIELDREF, owner, fieldName, fieldDescriptor));
+            int size = fieldDescriptor.equals("J") || fieldDescriptor.equals("D") ? 2 : 1;
+            switch (opcode) {
+                case GETSTATIC: adjust(size); break;
+                case GETFIELD: adjust(size - 1); break;
+                case PUTFIELD: adjust(-size - 1); break;
+                default: adjust(-size);
+            }
+        }
+
+        void invoke(int opcode, String owner, String invokedName, String invokedDescriptor) {
+            int[] slots = slots(invokedDescriptor);
+            code.write(opcode);
+            if (opcode == INVOKEINTERFACE) {
+                writeShort(memberRef(CONSTANT_INTERFACE_METHODREF, owner, invokedName, invokedDescriptor));
+                code.write(slots[0] + 1);
+                code.write(0);
+            } else {
+                writeShort(memberRef(CONSTANT_METHODREF, owner, invokedName, invokedDescriptor));
+            }
+            int receiver = opcode == INVOKESTATIC ? 0 : 1;
+            adjust(slots[1] - slots[0] - receiver);
+        }
+
+        void jump(int opcode, Label label) {
+            int at = code.size();
+            code.write(opcode);
+            adjust(opcode == GOTO ? 0 : -1);
+            label.stack = stack;
+            if (label.position >= 0) {
+                writeShort(checkOffset(label.position - at));
+            } else {
+                label.fixups.add(at);
+                writeShort(0);
+            }
+        }
+
+        void mark(Label label) {
+            label.position = code.size();
+            if (label.stack >= 0) stack = label.stack;
+            label.stack = stack;
+        }
+
+        void useLocal(int local) {
+            maxLocals = Math.max(maxLocals, local + 1);
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void writeShort(int value) {
+            code.write((value >> 8) & 0xff);
+            code.write(value & 0xff);
+        }
+
+        private int checkOffset(int offset) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                throw new TooLarge("Branch offset out of range.");
+            }
+            return offset;
+        }
+
+        private byte[] patch() {
+            byte[] bytes = code.toByteArray();
+            for (Label label : labels) {
+                for (int at : label.fixups) {
+                    int offset = checkOffset(label.position - at);
+                    bytes[at + 1] = (byte) ((offset >> 8) & 0xff);
+                    bytes[at + 2] = (byte) (offset & 0xff);
+                }
+            }
+            return bytes;
+        }
+
+        private byte[] toByteArray() throws IOException {
+            byte[] patched = patch();
+            if (patched.length > 0xffff) {
+                throw new TooLarge("Method too large.");
+            }
+
+            int nameIndex = utf8(methodName);
+            int descriptorIndex = utf8(descriptor);
+            int codeIndex = utf8("Code");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeIndex);
+            out.writeInt(12 + patched.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(patched.length);
+            out.write(patched);
+            out.writeShort(0);
+            out.writeShort(0);
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,683 @@
+package net.chthonic.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/* The tier between the tree-walker and the Jit. A warm function's body is
+   turned into a tree of Java lambdas, once, with everything the Interpreter
+   works out on every visit already decided: which operator, which slot at
+   which depth, which constant. Running it is then a chain of direct lambda
+   calls instead of accept/visit double dispatch.
+
+   Scopes are still Environments and statements complete the same way as in
+   the Interpreter, so compiled and interpreted code can't tell each other
+   apart.
+ */
+class ClosureCompiler implements Expr.Visitor<Function<Environment, Object>>,
+        Stmt.Visitor<ClosureCompiler.Statement> {
+    static boolean enabled = true;
+    static int threshold = 2;
+
+    interface Statement {
+        // Returns the completion, as Interpreter's statement visitors do.
+        Object execute(Environment environment);
+    }
+
+    private final Interpreter interpreter;
+
+    private ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    static CompiledFunction compile(Stmt.Function declaration,
+                                    LoxFunction.FunctionType type,
+                                    Interpreter interpreter) {
+        ClosureCompiler compiler = new ClosureCompiler(interpreter);
+        List<Statement> body = compiler.compile(declaration.body);
+        boolean isInitializer = type == LoxFunction.FunctionType.INITIALIZER;
+
+        return (caller, frame) -> {
+            Object completion = execute(body, frame);
+            if (isInitializer) return frame.getAt(1, 0);
+            if (completion == Interpreter.RETURN) return caller.returnValue;
+            return null;
+        };
+    }
+
+    private List<Statement> compile(List<Stmt> statements) {
+        List<Statement> compiled = new ArrayList<>();
+        for (Stmt statement : statements) {
+            compiled.add(statement.accept(this));
+        }
+        return compiled;
+    }
+
+    private static Object execute(List<Statement> statements, Environment environment) {
+        for (int i = 0; i < statements.size(); i++) {
+            Object completion = statements.get(i).execute(environment);
+            if (completion != null) return completion;
+        }
+        return null;
+    }
+
+    private Function<Environment, Object> compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Statement visitBlockStmt(Stmt.Block stmt) {
+        List<Statement> statements = compile(stmt.statements);
+        if (!stmt.scoped) return environment -> execute(statements, environment);
+        if (!Interpreter.reuseFrames) {
+            return environment -> execute(statements, new Environment(environment));
+        }
+
+        return environment -> {
+            Environment frame = interpreter.frame(environment);
+            try {
+                return execute(statements, frame);
+            } finally {
+                interpreter.release(frame);
+            }
+        };
+    }
+
+    @Override
+    public Statement visitClassStmt(Stmt.Class stmt) {
+        // Class declarations are rare enough inside functions to leave to
+        // the Interpreter.
+        List<Stmt> statements = Collections.singletonList(stmt);
+        return environment -> interpreter.executeBlock(statements, environment);
+    }
+
+    @Override
+    public Statement visitExpressionStmt(Stmt.Expression stmt) {
+        Function<Environment, Object> expression = compile(stmt.expression);
+        return environment -> {
+            expression.apply(environment);
+            return null;
+        };
+    }
+
+    @Override
+    public Statement visitFunctionStmt(Stmt.Function stmt) {
+        // Boxed functions are rare enough to leave to the Interpreter.
+        if (stmt.boxed) {
+            List<Stmt> statements = Collections.singletonList(stmt);
+            return environment -> interpreter.executeBlock(statements, environment);
+        }
+
+        return environment -> {
+            environment.define(stmt.name.lexeme, new LoxFunction(stmt,
+                    environment.capture(stmt.captures), LoxFunction.FunctionType.FUNCTION));
+            return null;
+        };
+    }
+
+    @Override
+    public Statement visitIfStmt(Stmt.If stmt) {
+        Function<Environment, Object> condition = compile(stmt.condition);
+        Statement thenBranch = stmt.thenBranch.accept(this);
+        if (stmt.elseBranch == null) {
+            return environment -> {
+                if (Interpreter.isTruthy(condition.apply(environment))) {
+                    return thenBranch.execute(environment);
+                }
+                return null;
+            };
+        }
+
+        Statement elseBranch = stmt.elseBranch.accept(this);
+        return environment -> {
+            if (Interpreter.isTruthy(condition.apply(environment))) {
+                return thenBranch.execute(environment);
+            }
+            return elseBranch.execute(environment);
+        };
+    }
+
+    @Override
+    public Statement visitPrintStmt(Stmt.Print stmt) {
+        Function<Environment, Object> expression = compile(stmt.expression);
+        return environment -> {
+            System.out.println(Interpreter.stringify(expression.apply(environment)));
+            return null;
+        };
+    }
+
+    @Override
+    public Statement visitPrintAstStmt(Stmt.PrintAst stmt) {
+        String text = new AstPrinter().print(stmt.expression);
+        return environment -> {
+            System.out.println(text);
+            return null;
+        };
+    }
+
+    @Override
+    public Statement visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return environment -> {
+                interpreter.returnValue = null;
+                return Interpreter.RETURN;
+            };
+        }
+
+        Function<Environment, Object> value = compile(stmt.value);
+        return environment -> {
+            interpreter.returnValue = value.apply(environment);
+            return Interpreter.RETURN;
+        };
+    }
+
+    @Override
+    public Statement visitVarStmt(Stmt.Var stmt) {
+        String name = stmt.name.lexeme;
+        if (stmt.initializer == null) {
+            boolean boxed = stmt.boxed;
+            return environment -> {
+                environment.define(name, boxed ? new Cell(null) : null);
+                return null;
+            };
+        }
+
+        Function<Environment, Object> initializer = compile(stmt.initializer);
+        if (stmt.boxed) {
+            return environment -> {
+                environment.define(name, new Cell(initializer.apply(environment)));
+                return null;
+            };
+        }
+        return environment -> {
+            environment.define(name, initializer.apply(environment));
+            return null;
+        };
+    }
+
+    @Override
+    public Statement visitWhileStmt(Stmt.While stmt) {
+        Function<Environment, Object> condition = compile(stmt.condition);
+        Function<Environment, Object> increment =
+                stmt.increment == null ? environment -> null : compile(stmt.increment);
+
+        // As in the Interpreter, a scoped body keeps one frame for the loop.
+        Stmt.Block block = Interpreter.scopedBlock(stmt.body);
+        if (Interpreter.reuseFrames && block != null) {
+            List<Statement> statements = compile(block.statements);
+            return environment -> {
+                Environment frame = interpreter.frame(environment);
+                try {
+                    while (Interpreter.isTruthy(condition.apply(environment))) {
+                        frame.clear();
+                        Object completion = execute(statements, frame);
+                        if (completion == stmt) break;
+                        if (completion != null) return completion;
+                        increment.apply(environment);
+                    }
+                    return null;
+                } finally {
+                    interpreter.release(frame);
+                }
+            };
+        }
+
+        Statement body = stmt.body.accept(this);
+        return environment -> {
+            while (Interpreter.isTruthy(condition.apply(environment))) {
+                Object completion = body.execute(environment);
+                if (completion == stmt) break;
+                if (completion != null) return completion;
+                increment.apply(environment);
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public Statement visitBreakStmt(Stmt.Break stmt) {
+        Stmt.While loop = stmt.loop;
+        return environment -> loop;
+    }
+
+    @Override
+    public Function<Environment, Object> visitAssignExpr(Expr.Assign expr) {
+        Function<Environment, Object> value = compile(expr.value);
+        int depth = expr.depth;
+        int slot = expr.slot;
+        if (expr.boxed) {
+            return environment -> {
+                Object result = value.apply(environment);
+                ((Cell)environment.getAt(depth, slot)).value = result;
+                return result;
+            };
+        }
+        if (depth < 0) {
+            Token name = expr.name;
+            Cell global = interpreter.globals.global(name.lexeme);
+            return environment -> {
+                Object result = value.apply(environment);
+                Environment.assign(global, name, result);
+                return result;
+            };
+        }
+
+        return environment -> {
+            Object result = value.apply(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public Function<Environment, Object> visitTernaryExpr(Expr.Ternary expr) {
+        Function<Environment, Object> left = compile(expr.left);
+        Function<Environment, Object> middle = compile(expr.middle);
+        Function<Environment, Object> right = compile(expr.right);
+        return environment -> Interpreter.isTruthy(left.apply(environment)) ?
+                middle.apply(environment) : right.apply(environment);
+    }
+
+    @Override
+    public Function<Environment, Object> visitBinaryExpr(Expr.Binary expr) {
+        if (Numbers.isNumber(expr) && Numbers.isArithmetic(expr.operator.type)) {
+            ToDoubleFunction<Environment> number = number(expr);
+            return environment -> Numbers.box(number.applyAsDouble(environment));
+        }
+        if (Numbers.isComparison(expr.operator.type) &&
+                (Numbers.isNumber(expr.left) || Numbers.isNumber(expr.right))) {
+            return comparison(expr);
+        }
+
+        Function<Environment, Object> left = compile(expr.left);
+        Function<Environment, Object> right = compile(expr.right);
+        Token operator = expr.operator;
+
+        // Under --specialize the node goes on using the variant the
+        // tree-walker picked for it, unless its type is already known.
+        if (interpreter instanceof SpecializingInterpreter &&
+                operator.type != TokenType.COMMA && expr.type != Type.STRING) {
+            return environment -> {
+                Object l = left.apply(environment);
+                Object r = right.apply(environment);
+                return SpecializingInterpreter.specialized(expr, l, r);
+            };
+        }
+
+        switch (operator.type) {
+            case GREATER:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    Object r = right.apply(environment);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l > (double)r;
+                };
+            case GREATER_EQUAL:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    Object r = right.apply(environment);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l >= (double)r;
+                };
+            case LESS:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    Object r = right.apply(environment);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l < (double)r;
+                };
+            case LESS_EQUAL:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    Object r = right.apply(environment);
+                    Interpreter.checkNumberOperands(operator, l, r);
+                    return (double)l <= (double)r;
+                };
+            case BANG_EQUAL:
+                return environment -> !Interpreter.isEqual(
+                        left.apply(environment), right.apply(environment));
+            case EQUAL_EQUAL:
+                return environment -> Interpreter.isEqual(
+                        left.apply(environment), right.apply(environment));
+            case COMMA:
+                return environment -> {
+                    left.apply(environment);
+                    return right.apply(environment);
+                };
+            default:
+                // PLUS, which depends on the operand types unless one is
+                // known to be a string.
+                if (expr.type == Type.STRING) {
+                    return environment -> {
+                        Object l = left.apply(environment);
+                        Object r = right.apply(environment);
+                        return Interpreter.stringify(l) + Interpreter.stringify(r);
+                    };
+                }
+                return environment -> Interpreter.binary(operator,
+                        left.apply(environment), right.apply(environment));
+        }
+    }
+
+    /* Expressions Numbers.isNumber() is true of are compiled a second way,
+       to functions returning a plain double. Arithmetic nested inside them
+       then works on unboxed temporaries, and only the outermost result gets
+       boxed; a comparison with a numeric side doesn't box its operands at
+       all.
+     */
+    private ToDoubleFunction<Environment> number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            double value = (double)((Expr.Literal)expr).value;
+            return environment -> value;
+        }
+        if (expr instanceof Expr.Grouping) return number(((Expr.Grouping)expr).expression);
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (Numbers.isNumber(unary.right)) {
+                ToDoubleFunction<Environment> right = number(unary.right);
+                return environment -> -right.applyAsDouble(environment);
+            }
+
+            Function<Environment, Object> right = compile(unary.right);
+            Token operator = unary.operator;
+            return environment -> {
+                Object value = right.apply(environment);
+                Interpreter.checkNumberOperand(operator, value);
+                return -(double)value;
+            };
+        }
+
+        if (!(expr instanceof Expr.Binary) ||
+                !Numbers.isArithmetic(((Expr.Binary)expr).operator.type)) {
+            // Anything else proven to be a number, like a variable, only
+            // needs unboxing.
+            Function<Environment, Object> value = compile(expr);
+            return environment -> (double)value.apply(environment);
+        }
+
+        Expr.Binary binary = (Expr.Binary)expr;
+        Token operator = binary.operator;
+        ToDoubleFunction<Environment> right = operand(binary.right, operator);
+
+        if (Numbers.isNumber(binary.left)) {
+            ToDoubleFunction<Environment> left = number(binary.left);
+            switch (operator.type) {
+                case MINUS:
+                    return environment -> left.applyAsDouble(environment) - right.applyAsDouble(environment);
+                case SLASH:
+                    return environment -> left.applyAsDouble(environment) / right.applyAsDouble(environment);
+                case STAR:
+                    return environment -> left.applyAsDouble(environment) * right.applyAsDouble(environment);
+                default:
+                    // PLUS.
+                    return environment -> left.applyAsDouble(environment) + right.applyAsDouble(environment);
+            }
+        }
+
+        // The left operand is evaluated first but only checked after the
+        // right one, same as everywhere else.
+        Function<Environment, Object> left = compile(binary.left);
+        switch (operator.type) {
+            case MINUS:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    double r = right.applyAsDouble(environment);
+                    return checkNumber(operator, l) - r;
+                };
+            case SLASH:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    double r = right.applyAsDouble(environment);
+                    return checkNumber(operator, l) / r;
+                };
+            default:
+                // STAR.
+                return environment -> {
+                    Object l = left.apply(environment);
+                    double r = right.applyAsDouble(environment);
+                    return checkNumber(operator, l) * r;
+                };
+        }
+    }
+
+    private Function<Environment, Object> comparison(Expr.Binary expr) {
+        Token operator = expr.operator;
+        ToDoubleFunction<Environment> right = operand(expr.right, operator);
+
+        if (Numbers.isNumber(expr.left)) {
+            ToDoubleFunction<Environment> left = number(expr.left);
+            switch (operator.type) {
+                case GREATER:
+                    return environment -> left.applyAsDouble(environment) > right.applyAsDouble(environment);
+                case GREATER_EQUAL:
+                    return environment -> left.applyAsDouble(environment) >= right.applyAsDouble(environment);
+                case LESS:
+                    return environment -> left.applyAsDouble(environment) < right.applyAsDouble(environment);
+                default:
+                    // LESS_EQUAL.
+                    return environment -> left.applyAsDouble(environment) <= right.applyAsDouble(environment);
+            }
+        }
+
+        Function<Environment, Object> left = compile(expr.left);
+        switch (operator.type) {
+            case GREATER:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    double r = right.applyAsDouble(environment);
+                    return checkNumber(operator, l) > r;
+                };
+            case GREATER_EQUAL:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    double r = right.applyAsDouble(environment);
+                    return checkNumber(operator, l) >= r;
+                };
+            case LESS:
+                return environment -> {
+                    Object l = left.apply(environment);
+                    double r = right.applyAsDouble(environment);
+                    return checkNumber(operator, l) < r;
+                };
+            default:
+                // LESS_EQUAL.
+                return environment -> {
+                    Object l = left.apply(environment);
+                    double r = right.applyAsDouble(environment);
+                    return checkNumber(operator, l) <= r;
+                };
+        }
+    }
+
+    // The right operand of a binary operator that needs numbers.
+    private ToDoubleFunction<Environment> operand(Expr expr, Token operator) {
+        if (Numbers.isNumber(expr)) return number(expr);
+
+        Function<Environment, Object> value = compile(expr);
+        return environment -> checkNumber(operator, value.apply(environment));
+    }
+
+    private static double checkNumber(Token operator, Object value) {
+        if (value instanceof Double) return (double)value;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    @Override
+    public Function<Environment, Object> visitCallExpr(Expr.Call expr) {
+        List<Function<Environment, Object>> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(compile(argument));
+        }
+        Token paren = expr.paren;
+        InlineCache cache = expr.cache;
+        boolean isTailCall = expr.isTailCall;
+        int count = arguments.size();
+
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Function<Environment, Object> object = compile(get.object);
+            Token name = get.name;
+            InlineCache getCache = get.cache;
+
+            return environment -> {
+                Object receiver = object.apply(environment);
+                LoxFunction method = interpreter.findMethod(receiver, name, getCache);
+                if (method == null) receiver = interpreter.getProperty(receiver, name, getCache);
+
+                Environment frame = interpreter.argumentFrame(
+                        method != null ? method : receiver, count);
+                if (frame != null) {
+                    evaluate(arguments, environment, frame);
+                    return interpreter.callFrame(paren, receiver, method, frame, cache, isTailCall);
+                }
+
+                List<Object> values = evaluate(arguments, environment);
+                if (isTailCall) return interpreter.tailCall(paren, receiver, method, values, cache);
+                return interpreter.invoke(paren, receiver, method, values, cache);
+            };
+        }
+
+        Function<Environment, Object> callee = compile(expr.callee);
+        return environment -> {
+            Object function = callee.apply(environment);
+
+            Environment frame = interpreter.argumentFrame(function, count);
+            if (frame != null) {
+                evaluate(arguments, environment, frame);
+                return interpreter.callFrame(paren, function, null, frame, cache, isTailCall);
+            }
+
+            List<Object> values = evaluate(arguments, environment);
+            if (isTailCall) return interpreter.tailCall(paren, function, null, values, cache);
+            return interpreter.call(paren, function, values, cache);
+        };
+    }
+
+    // Straight into the callee's frame, as in Interpreter.visitCallExpr.
+    private static void evaluate(List<Function<Environment, Object>> arguments,
+                                 Environment environment, Environment frame) {
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.define(arguments.get(i).apply(environment));
+        }
+    }
+
+    private static List<Object> evaluate(List<Function<Environment, Object>> arguments,
+                                         Environment environment) {
+        if (arguments.isEmpty()) return Collections.emptyList();
+
+        List<Object> values = new ArrayList<>(arguments.size());
+        for (int i = 0; i < arguments.size(); i++) {
+            values.add(arguments.get(i).apply(environment));
+        }
+        return values;
+    }
+
+    @Override
+    public Function<Environment, Object> visitGetExpr(Expr.Get expr) {
+        Function<Environment, Object> object = compile(expr.object);
+        Token name = expr.name;
+        InlineCache cache = expr.cache;
+        return environment -> interpreter.getProperty(object.apply(environment), name, cache);
+    }
+
+    @Override
+    public Function<Environment, Object> visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Function<Environment, Object> visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Function<Environment, Object> visitLogicalExpr(Expr.Logical expr) {
+        Function<Environment, Object> left = compile(expr.left);
+        Function<Environment, Object> right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return environment -> {
+                Object value = left.apply(environment);
+                return Interpreter.isTruthy(value) ? value : right.apply(environment);
+            };
+        }
+
+        return environment -> {
+            Object value = left.apply(environment);
+            return !Interpreter.isTruthy(value) ? value : right.apply(environment);
+        };
+    }
+
+    @Override
+    public Function<Environment, Object> visitSetExpr(Expr.Set expr) {
+        Function<Environment, Object> object = compile(expr.object);
+        Function<Environment, Object> value = compile(expr.value);
+        Token name = expr.name;
+        InlineCache cache = expr.cache;
+
+        return environment -> {
+            Object instance = object.apply(environment);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+            return interpreter.setProperty((LoxInstance)instance, name,
+                    value.apply(environment), cache);
+        };
+    }
+
+    @Override
+    public Function<Environment, Object> visitSuperExpr(Expr.Super expr) {
+        int depth = expr.depth;
+        int slot = expr.slot;
+        int receiverDepth = expr.receiverDepth;
+        int receiverSlot = expr.receiverSlot;
+        Token method = expr.method;
+        return environment -> Interpreter.lookUpSuper(environment, depth, slot,
+                receiverDepth, receiverSlot, method);
+    }
+
+    @Override
+    public Function<Environment, Object> visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public Function<Environment, Object> visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            Function<Environment, Object> right = compile(expr.right);
+            return environment -> !Interpreter.isTruthy(right.apply(environment));
+        }
+
+        ToDoubleFunction<Environment> number = number(expr);
+        return environment -> Numbers.box(number.applyAsDouble(environment));
+    }
+
+    @Override
+    public Function<Environment, Object> visitVariableExpr(Expr.Variable expr) {
+        if (expr.boxed) {
+            int depth = expr.depth;
+            int slot = expr.slot;
+            return environment -> ((Cell)environment.getAt(depth, slot)).value;
+        }
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    @Override
+    public Function<Environment, Object> visitLambdaExpr(Expr.Lambda expr) {
+        List<Capture> captures = expr.captures;
+        return environment -> new LambdaFunction(expr, environment.capture(captures));
+    }
+
+    private Function<Environment, Object> variable(Token name, int depth, int slot) {
+        if (depth < 0) {
+            Cell global = interpreter.globals.global(name.lexeme);
+            return environment -> Environment.get(global, name);
+        }
+
+        return environment -> environment.getAt(depth, slot);
+    }
+}
@@ -0,0 +1,8 @@
+package net.chthonic.lox;
+
+// Implemented by the classes the Jit generates for hot function bodies, and
+// by the ClosureCompiler's. The frame holds the arguments and encloses the
+// function's closure, or its "this" for a method.
+interface CompiledFunction {
+    Object call(Interpreter interpreter, Environment frame);
+}
@@ -1,61 +1,127 @@
 package net.chthonic.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+/* Local scopes are positional: the Resolver hands every local a slot index in
+   declaration order, so a frame is just an array. The global environment keeps
+   its names, because the REPL can define and redefine globals at any time.
+   Each global lives in a Cell that stays put once it's made, so a site that
+   reads or assigns it can look the name up once and keep the Cell. A name
+   that's been looked up but not defined yet gets a Cell holding UNDEFINED,
+   which defining it later fills in.
+
+   Closures are flat: a function, lambda or class gets an Environment of
+   its own holding just the variables it captures, copied out of the scopes
+   around it, with no enclosing. So nothing outside a call ever refers to
+   its frames, and they're reused once it's over (see Interpreter.frame),
+   which is why enclosing can change.
+ */
 class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private static final int INITIAL_SLOTS = 4;
+
+    Environment enclosing;
+    // What an undefined global's Cell holds.
+    static final Object UNDEFINED = new Object();
+
+    private final Map<String, Cell> globals;
+    private Object[] values;
+    private int count = 0;
 
     Environment() {
         enclosing = null;
+        globals = new HashMap<>();
+        values = null;
     }
 
     Environment(Environment enclosing) {
+        this(enclosing, INITIAL_SLOTS);
+    }
+
+    Environment(Environment enclosing, int slots) {
         this.enclosing = enclosing;
+        globals = null;
+        values = new Object[slots];
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+        return get(global(name.lexeme), name);
+    }
+
+    void assign(Token name, Object value) {
+        assign(global(name.lexeme), name, value);
+    }
+
+    // The Cell for the global called name, defined or not.
+    Cell global(String name) {
+        return globals.computeIfAbsent(name, key -> new Cell(UNDEFINED));
+    }
+
+    static Object get(Cell global, Token name) {
+        Object value = global.value;
+        if (value == UNDEFINED) throw undefined(name);
+        return value;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    static void assign(Cell global, Token name, Object value) {
+        if (global.value == UNDEFINED) throw undefined(name);
+        global.value = value;
+    }
 
-        throw new RuntimeError(name,
+    private static RuntimeError undefined(Token name) {
+        return new RuntimeError(name,
                 "Undefined variable '" + name.lexeme + "'.");
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+    // Globals are stored by name; locals take the next slot.
+    void define(String name, Object value) {
+        if (globals != null) {
+            global(name).value = value;
             return;
         }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+        define(value);
+    }
+
+    void define(Object value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
         }
+        values[count++] = value;
+    }
 
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+    // The locals defined so far, in order.
+    List<Object> locals() {
+        return Arrays.asList(Arrays.copyOf(values, count));
     }
 
-    // Assign only to this exact environment
-    void superAssign(String name, LoxClass value) {
-        values.put(name, value);
+    // The closure for a function, lambda or class created in this scope,
+    // or null if it captures nothing. Boxed variables are copied as their
+    // Cells, so they stay shared.
+    Environment capture(List<Capture> captures) {
+        if (captures.isEmpty()) return null;
+
+        Environment closure = new Environment(null, captures.size());
+        for (Capture capture : captures) {
+            closure.values[closure.count++] = getAt(capture.depth, capture.slot);
+        }
+        return closure;
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    // Forgets the locals, so a reused frame doesn't keep them alive.
+    void clear() {
+        Arrays.fill(values, 0, count, null);
+        count = 0;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).values[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).values[slot] = value;
     }
 
     Environment ancestor(int distance) {
@@ -66,4 +132,4 @@ class Environment {
 
         return environment;
     }
-}
\ No newline at end of file
+}
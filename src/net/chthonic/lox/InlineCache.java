@@ -0,0 +1,163 @@
+package net.chthonic.lox;
+
+/* A polymorphic inline cache for one Get, Set or Call site. Each entry
+   remembers what the lookup found for one receiver shape and class: the
+   field's slot, the method, or for a new field the shape to move to. Up to
+   MAX_ENTRIES receivers are remembered; after that the site is megamorphic
+   and goes back to the uncached lookups.
+
+   Classes never change their methods after they're created, and a shape
+   always has the same slots, so an entry can't go stale.
+
+   A call or getter site also remembers the small function it's running in
+   place, if any; see Inliner.
+ */
+class InlineCache {
+    static final int MAX_ENTRIES = 4;
+
+    static long hits = 0;
+    static long misses = 0;
+    static long megamorphic = 0;
+
+    private static class Entry {
+        final Shape shape;
+        final LoxClass klass;
+        // The field's slot, or -1 when the lookup found a method.
+        final int slot;
+        final LoxFunction method;
+        // For a Set that adds a field, the shape the instance moves to.
+        final Shape next;
+
+        Entry(Shape shape, LoxClass klass, int slot, LoxFunction method, Shape next) {
+            this.shape = shape;
+            this.klass = klass;
+            this.slot = slot;
+            this.method = method;
+            this.next = next;
+        }
+    }
+
+    private final Entry[] entries = new Entry[MAX_ENTRIES];
+    private int count = 0;
+    private boolean isMegamorphic = false;
+    private Stmt.Function inlinedDeclaration;
+    private Inliner.Code inlined;
+    private boolean triedInlining = false;
+
+    Object get(LoxInstance instance, Token name) {
+        Entry entry = find(instance.shape, instance.klass);
+        if (entry == null) {
+            if (isMegamorphic) return instance.get(name);
+            entry = add(lookUp(instance, name));
+        }
+
+        if (entry.slot >= 0) return instance.fields[entry.slot];
+        if (entry.method.type == LoxFunction.FunctionType.GETTER) return entry.method;
+        return entry.method.bind(instance);
+    }
+
+    // The unbound method a call site can invoke directly, or null if the
+    // property is a field or a getter and has to be got first.
+    LoxFunction method(LoxInstance instance, Token name) {
+        Entry entry = find(instance.shape, instance.klass);
+        LoxFunction method;
+        if (entry != null) {
+            method = entry.method;
+        } else if (isMegamorphic) {
+            if (instance.shape.indexOf(name.lexeme) >= 0) return null;
+            method = instance.klass.findMethod(name.lexeme);
+        } else {
+            method = add(lookUp(instance, name)).method;
+        }
+
+        if (method == null || method.type == LoxFunction.FunctionType.GETTER) return null;
+        return method;
+    }
+
+    private static Entry lookUp(LoxInstance instance, Token name) {
+        int slot = instance.shape.indexOf(name.lexeme);
+        LoxFunction method = null;
+        if (slot < 0) {
+            method = instance.klass.findMethod(name.lexeme);
+            if (method == null) {
+                throw new RuntimeError(name,
+                        "Undefined property '" + name.lexeme + "'.");
+            }
+        }
+        return new Entry(instance.shape, instance.klass, slot, method, null);
+    }
+
+    // Returns the unbound setter if the class has one, otherwise stores the
+    // field and returns null, like LoxInstance.set.
+    LoxFunction set(LoxInstance instance, Token name, Object value) {
+        Entry entry = find(instance.shape, instance.klass);
+        if (entry == null) {
+            if (isMegamorphic) return instance.set(name, value);
+
+            LoxFunction setter = instance.klass.findSetter(name.lexeme);
+            if (setter != null) {
+                entry = new Entry(instance.shape, instance.klass, -1, setter, null);
+            } else {
+                int slot = instance.shape.indexOf(name.lexeme);
+                Shape next = null;
+                if (slot < 0) {
+                    next = instance.shape.with(name.lexeme);
+                    slot = next.size() - 1;
+                }
+                entry = new Entry(instance.shape, instance.klass, slot, null, next);
+            }
+            add(entry);
+        }
+
+        if (entry.method != null) return entry.method;
+        if (entry.next != null) instance.transition(entry.next);
+        instance.fields[entry.slot] = value;
+        return null;
+    }
+
+    // The body to run in place of calling function, or null to call it.
+    // Only the first function the site reaches is inlined; reaching any
+    // other undoes that.
+    Inliner.Code inline(LoxFunction function, Interpreter interpreter) {
+        if (inlined != null) {
+            if (function.declaration == inlinedDeclaration) return inlined;
+
+            Inliner.deoptimizations++;
+            inlined = null;
+            inlinedDeclaration = null;
+            return null;
+        }
+        if (triedInlining) return null;
+
+        triedInlining = true;
+        inlined = Inliner.inline(function, interpreter);
+        if (inlined != null) inlinedDeclaration = function.declaration;
+        return inlined;
+    }
+
+    private Entry find(Shape shape, LoxClass klass) {
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[i];
+            if (entry.shape == shape && entry.klass == klass) {
+                hits++;
+                return entry;
+            }
+        }
+
+        if (isMegamorphic) {
+            megamorphic++;
+        } else {
+            misses++;
+        }
+        return null;
+    }
+
+    private Entry add(Entry entry) {
+        if (count == MAX_ENTRIES) {
+            isMegamorphic = true;
+        } else {
+            entries[count++] = entry;
+        }
+        return entry;
+    }
+}
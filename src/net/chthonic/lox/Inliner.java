@@ -0,0 +1,190 @@
+package net.chthonic.lox;
+
+import java.util.List;
+
+/* Small functions, methods and getters are run in place at the call sites
+   that reach them, without the Environment, bound function or completion
+   handling a real call needs. A body qualifies if it's a single return of
+   an expression of at most budget nodes that only reads its parameters,
+   "this", globals, literals and properties: no calls, assignments or
+   lambdas, and nothing captured from an enclosing function, so knowing the
+   receiver and the arguments is enough to evaluate it.
+
+   Each site keeps what it inlined in its InlineCache, along with the
+   declaration it came from as the guard. The first time the site reaches a
+   different function the inlining is undone and the site goes back to real
+   calls for good, so it can't flip back and forth.
+ */
+class Inliner implements Expr.Visitor<Inliner.Code> {
+    static boolean enabled = true;
+    static int budget = 12;
+
+    static long inlinedCalls = 0;
+    static long deoptimizations = 0;
+
+    interface Code {
+        // The arguments are in the frame the call would have run in.
+        Object run(LoxInstance receiver, Environment arguments);
+    }
+
+    private final Interpreter interpreter;
+    private final boolean hasThis;
+    private int nodes = 0;
+
+    private Inliner(Interpreter interpreter, boolean hasThis) {
+        this.interpreter = interpreter;
+        this.hasThis = hasThis;
+    }
+
+    // The function's body ready to run in place, or null if it can't be.
+    static Code inline(LoxFunction function, Interpreter interpreter) {
+        if (!enabled) return null;
+
+        List<Stmt> body = function.declaration.body;
+        if (body.isEmpty()) return (receiver, arguments) -> null;
+        if (body.size() != 1 || !(body.get(0) instanceof Stmt.Return)) return null;
+
+        Expr value = ((Stmt.Return)body.get(0)).value;
+        if (value == null) return (receiver, arguments) -> null;
+
+        boolean hasThis = function.type != LoxFunction.FunctionType.FUNCTION;
+        return new Inliner(interpreter, hasThis).compile(value);
+    }
+
+    // Null if expr, or anything in it, can't be inlined or the body has
+    // gone over budget.
+    private Code compile(Expr expr) {
+        if (++nodes > budget) return null;
+        return expr.accept(this);
+    }
+
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        return null;
+    }
+
+    @Override
+    public Code visitTernaryExpr(Expr.Ternary expr) {
+        Code left = compile(expr.left);
+        Code middle = compile(expr.middle);
+        Code right = compile(expr.right);
+        if (left == null || middle == null || right == null) return null;
+
+        return (receiver, arguments) -> Interpreter.isTruthy(left.run(receiver, arguments)) ?
+                middle.run(receiver, arguments) : right.run(receiver, arguments);
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        if (left == null || right == null) return null;
+
+        Token operator = expr.operator;
+        return (receiver, arguments) -> {
+            Object l = left.run(receiver, arguments);
+            Object r = right.run(receiver, arguments);
+            return Interpreter.binary(operator, l, r);
+        };
+    }
+
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        return null;
+    }
+
+    @Override
+    public Code visitGetExpr(Expr.Get expr) {
+        Code object = compile(expr.object);
+        if (object == null) return null;
+
+        Token name = expr.name;
+        InlineCache cache = expr.cache;
+        return (receiver, arguments) ->
+                interpreter.getProperty(object.run(receiver, arguments), name, cache);
+    }
+
+    @Override
+    public Code visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Code visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        return (receiver, arguments) -> value;
+    }
+
+    @Override
+    public Code visitLogicalExpr(Expr.Logical expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        if (left == null || right == null) return null;
+
+        if (expr.operator.type == TokenType.OR) {
+            return (receiver, arguments) -> {
+                Object value = left.run(receiver, arguments);
+                return Interpreter.isTruthy(value) ? value : right.run(receiver, arguments);
+            };
+        }
+
+        return (receiver, arguments) -> {
+            Object value = left.run(receiver, arguments);
+            return !Interpreter.isTruthy(value) ? value : right.run(receiver, arguments);
+        };
+    }
+
+    @Override
+    public Code visitSetExpr(Expr.Set expr) {
+        return null;
+    }
+
+    @Override
+    public Code visitSuperExpr(Expr.Super expr) {
+        return null;
+    }
+
+    @Override
+    public Code visitThisExpr(Expr.This expr) {
+        // A method's "this" is bound just outside its parameters; anything
+        // further out belongs to an enclosing method.
+        if (!hasThis || expr.depth != 1) return null;
+        return (receiver, arguments) -> receiver;
+    }
+
+    @Override
+    public Code visitUnaryExpr(Expr.Unary expr) {
+        Code right = compile(expr.right);
+        if (right == null) return null;
+
+        if (expr.operator.type == TokenType.BANG) {
+            return (receiver, arguments) -> !Interpreter.isTruthy(right.run(receiver, arguments));
+        }
+
+        Token operator = expr.operator;
+        return (receiver, arguments) -> {
+            Object value = right.run(receiver, arguments);
+            Interpreter.checkNumberOperand(operator, value);
+            return Numbers.box(-(double)value);
+        };
+    }
+
+    @Override
+    public Code visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth < 0) {
+            Token name = expr.name;
+            Cell global = interpreter.globals.global(name.lexeme);
+            return (receiver, arguments) -> Environment.get(global, name);
+        }
+
+        // The body is a lone return, so the only locals are the parameters.
+        if (expr.depth != 0) return null;
+        int slot = expr.slot;
+        return (receiver, arguments) -> arguments.getAt(0, slot);
+    }
+
+    @Override
+    public Code visitLambdaExpr(Expr.Lambda expr) {
+        return null;
+    }
+}
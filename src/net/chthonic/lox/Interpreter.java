@@ -2,10 +2,43 @@ package net.chthonic.lox;
 
 import java.util.*;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+/* Statements return how they completed rather than throwing: null when
+   they ran to the end, RETURN when a return statement ran, with its value
+   left in returnValue, or the Stmt.While that a break is leaving. Blocks and
+   loops stop and pass on anything that isn't null.
+ */
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
+    static final Object RETURN = new Object();
+    /* What a call in tail position evaluates to when it calls a Lox function.
+       The call itself is left in the tail* fields for the trampoline in the
+       caller's LoxFunction or LambdaFunction.call, so the Java stack doesn't
+       grow.
+     */
+    static final Object TAIL_CALL = new Object();
+
+    // How many Lox functions can be running at once; see Lox.main for how
+    // the Java stack is sized to fit.
+    static int maxDepth = 4096;
+    static boolean reuseFrames = true;
+    private static final int MAX_SPARE_FRAMES = 256;
+
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    Object returnValue;
+    private LoxCallable tailFunction;
+    private LoxInstance tailReceiver;
+    private Environment tailFrame;
+    private int depth = 0;
+    // Where the latest call was made, for reporting stack overflows.
+    private Token callSite;
+    /* Closures copy what they capture rather than keep the frames they were
+       made in, so nothing can refer to a frame once its scope has ended.
+       Instead of leaving it for the GC it comes back here for the next call
+       or block. Scopes end in the opposite order they start, so this is a
+       stack.
+     */
+    private final Environment[] spareFrames = new Environment[MAX_SPARE_FRAMES];
+    private int spareFrameCount = 0;
 
     Interpreter() {
         globals.define("clock", new LoxCallable() {
@@ -15,6 +48,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             @Override
             public Object call(Interpreter interpreter,
                                List<Object> arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
@@ -30,9 +68,42 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } catch (StackOverflowError error) {
+            // Expressions nested deeply enough can still run out of Java
+            // stack before maxDepth calls.
+            if (callSite == null) throw error;
+            Lox.runtimeError(new RuntimeError(callSite, "Stack overflow."));
         }
     }
 
+    // Called as a Lox function starts running, with leave() when it's done.
+    void enter() {
+        if (depth == maxDepth) {
+            throw new RuntimeError(callSite, "Stack overflow.");
+        }
+        depth++;
+    }
+
+    void leave() {
+        depth--;
+    }
+
+    // A frame for a call or block; hand it back with release() once the
+    // scope has ended.
+    Environment frame(Environment enclosing) {
+        if (spareFrameCount == 0) return new Environment(enclosing);
+
+        Environment frame = spareFrames[--spareFrameCount];
+        frame.enclosing = enclosing;
+        return frame;
+    }
+
+    void release(Environment frame) {
+        frame.clear();
+        frame.enclosing = null;
+        if (spareFrameCount < MAX_SPARE_FRAMES) spareFrames[spareFrameCount++] = frame;
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -60,28 +131,37 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        LoxFunction setter = ((LoxInstance)object).set(expr.name, value);
+        return setProperty((LoxInstance)object, expr.name, value, expr.cache);
+    }
+
+    Object setProperty(LoxInstance instance, Token name, Object value, InlineCache cache) {
+        LoxFunction setter = cache.set(instance, name, value);
         if (setter != null) {
-            setter.call(this, Collections.singletonList(value));
+            callSite = name;
+            checkArity(name, setter.arity(), 1);
+            Environment frame = setter.frame(this);
+            frame.define(value);
+            setter.callMethod(this, instance, frame);
         }
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass thisClass = (LoxClass)environment.getAt(
-                distance, "super");
+        return lookUpSuper(environment, expr.depth, expr.slot,
+                expr.receiverDepth, expr.receiverSlot, expr.method);
+    }
 
-        // "this" is always one level nearer than "super"'s environment.
-        LoxInstance object = (LoxInstance)environment.getAt(
-                distance - 1, "this");
+    static Object lookUpSuper(Environment environment, int depth, int slot,
+                              int receiverDepth, int receiverSlot, Token name) {
+        LoxClass thisClass = (LoxClass)environment.getAt(depth, slot);
+        LoxInstance object = (LoxInstance)environment.getAt(receiverDepth, receiverSlot);
 
-        LoxFunction method = thisClass.findSuperMethod(expr.method.lexeme);
+        LoxFunction method = thisClass.findSuperMethod(name.lexeme);
 
         if (method == null) {
-            throw new RuntimeError(expr.method,
-                    "Undefined property '" + expr.method.lexeme + "'.");
+            throw new RuntimeError(name,
+                    "Undefined property '" + name.lexeme + "'.");
         }
 
         return method.bind(object);
@@ -89,7 +169,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return environment.getAt(expr.depth, expr.slot);
     }
 
     @Override
@@ -99,6 +179,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS && Numbers.isNumber(expr.right)) {
+            return Numbers.box(-number(expr.right));
+        }
+
         Object right = evaluate(expr.right);
 
         switch (expr.operator.type) {
@@ -106,7 +190,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 return !isTruthy(right);
             case MINUS:
                 checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                return Numbers.box(-(double)right);
         }
 
         // Unreachable.
@@ -115,61 +199,111 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
-    }
-
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+        if (expr.depth < 0) {
+            if (expr.global == null) expr.global = globals.global(expr.name.lexeme);
+            return Environment.get(expr.global, expr.name);
         }
+
+        Object value = environment.getAt(expr.depth, expr.slot);
+        return expr.boxed ? ((Cell)value).value : value;
     }
 
     @Override
     public Object visitLambdaExpr(Expr.Lambda expr) {
-        return new LambdaFunction(expr, environment);
+        return new LambdaFunction(expr, environment.capture(expr.captures));
     }
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        TokenType type = expr.operator.type;
+        if (Numbers.isNumber(expr.left) && Numbers.isNumber(expr.right) &&
+                (Numbers.isArithmetic(type) || Numbers.isComparison(type))) {
+            double left = number(expr.left);
+            double right = number(expr.right);
+            switch (type) {
+                case PLUS: return Numbers.box(left + right);
+                case MINUS: return Numbers.box(left - right);
+                case STAR: return Numbers.box(left * right);
+                case SLASH: return Numbers.box(left / right);
+                case GREATER: return left > right;
+                case GREATER_EQUAL: return left >= right;
+                case LESS: return left < right;
+                default: return left <= right;
+            }
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        if (type == TokenType.PLUS && expr.type == Type.STRING) {
+            return stringify(left) + stringify(right);
+        }
+        return binary(expr.operator, left, right);
+    }
+
+    // Evaluates an expression TypeInference proved is a number, without
+    // boxing any arithmetic on proven numbers inside it.
+    private double number(Expr expr) {
+        if (expr instanceof Expr.Grouping) {
+            return number(((Expr.Grouping)expr).expression);
+        }
+
+        if (expr instanceof Expr.Unary && Numbers.isNumber(((Expr.Unary)expr).right)) {
+            return -number(((Expr.Unary)expr).right);
+        }
+
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (Numbers.isArithmetic(binary.operator.type) &&
+                    Numbers.isNumber(binary.left) && Numbers.isNumber(binary.right)) {
+                double left = number(binary.left);
+                double right = number(binary.right);
+                switch (binary.operator.type) {
+                    case PLUS: return left + right;
+                    case MINUS: return left - right;
+                    case STAR: return left * right;
+                    default: return left / right;
+                }
+            }
+        }
+
+        return (double)evaluate(expr);
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left - (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.box((double)left - (double)right);
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
+                    return Numbers.box((double)left + (double)right);
                 }
 
                 if (left instanceof String || right instanceof String) {
                     return stringify(left) + stringify(right);
                 }
 
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                         "Operands must be two numbers or two strings.");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left / (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.box((double)left / (double)right);
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return (double)left * (double)right;
+                checkNumberOperands(operator, left, right);
+                return Numbers.box((double)left * (double)right);
             case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
             case COMMA: return right;
@@ -181,40 +315,257 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        // obj.name(...) calls the method on obj without binding it first.
+        Object callee;
+        LoxFunction method = null;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            callee = evaluate(get.object);
+            method = findMethod(callee, get.name, get.cache);
+            if (method == null) callee = getProperty(callee, get.name, get.cache);
+        } else {
+            callee = evaluate(expr.callee);
+        }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        // A Lox function's arguments go straight into its frame; anything
+        // else gets a list.
+        Environment frame = argumentFrame(method != null ? method : callee,
+                expr.arguments.size());
+        if (frame != null) {
+            for (int i = 0; i < expr.arguments.size(); i++) {
+                frame.define(evaluate(expr.arguments.get(i)));
+            }
+            return callFrame(expr.paren, callee, method, frame, expr.cache, expr.isTailCall);
+        }
+
+        List<Object> arguments = evaluate(expr.arguments);
+        if (expr.isTailCall) return tailCall(expr.paren, callee, method, arguments, expr.cache);
+        return invoke(expr.paren, callee, method, arguments, expr.cache);
+    }
+
+    // The frame to write the arguments of a call to function into, if it's a
+    // Lox function or lambda taking count of them, or a class whose init
+    // does. A native taking count of them, up to four, gets a frame too,
+    // which only holds them until they're passed to its call0 to call4.
+    // Otherwise null, and the call goes through a list and its arity check.
+    Environment argumentFrame(Object function, int count) {
+        if (function instanceof LoxFunction) {
+            LoxFunction loxFunction = (LoxFunction)function;
+            return loxFunction.arity() == count ? loxFunction.frame(this) : null;
+        }
+        if (function instanceof LambdaFunction) {
+            LambdaFunction lambda = (LambdaFunction)function;
+            return lambda.arity() == count ? lambda.frame(this) : null;
+        }
+        if (function instanceof LoxClass) {
+            LoxFunction initializer = ((LoxClass)function).initializer;
+            return initializer != null && initializer.arity() == count ?
+                    initializer.frame(this) : null;
+        }
+        if (function instanceof LoxCallable && count <= 4 &&
+                ((LoxCallable)function).arity() == count) {
+            return reuseFrames ? frame(null) : new Environment(null, count);
+        }
+        return null;
+    }
+
+    // Calls method with receiver as "this", or receiver itself if there's
+    // no method, with the arguments already in frame. A tail call is left
+    // to the trampoline and returns TAIL_CALL, but constructing an instance
+    // never is.
+    Object callFrame(Token paren, Object receiver, LoxFunction method, Environment frame,
+                     InlineCache cache, boolean isTailCall) {
+        if (receiver instanceof LoxClass && method == null) {
+            callSite = paren;
+            return ((LoxClass)receiver).instantiate(this, frame);
+        }
+        if (method == null &&
+                !(receiver instanceof LoxFunction || receiver instanceof LambdaFunction)) {
+            callSite = paren;
+            return callNative((LoxCallable)receiver, frame);
+        }
+
+        LoxCallable function = method != null ? method : (LoxCallable)receiver;
+        LoxInstance instance = method != null ? (LoxInstance)receiver : null;
+        callSite = paren;
+
+        // Running an inlined body in place doesn't grow the stack either.
+        Inliner.Code inlined = inlineable(function, instance, cache);
+        if (inlined != null) {
+            try {
+                return runInlined(inlined, instance, frame);
+            } finally {
+                if (reuseFrames) release(frame);
+            }
+        }
+
+        if (isTailCall) {
+            tailFunction = function;
+            tailReceiver = instance;
+            tailFrame = frame;
+            return TAIL_CALL;
+        }
+        return trampoline(run(function, instance, frame));
+    }
+
+    private Object callNative(LoxCallable function, Environment arguments) {
+        try {
+            switch (function.arity()) {
+                case 0: return function.call0(this);
+                case 1: return function.call1(this, arguments.getAt(0, 0));
+                case 2: return function.call2(this, arguments.getAt(0, 0), arguments.getAt(0, 1));
+                case 3: return function.call3(this, arguments.getAt(0, 0), arguments.getAt(0, 1),
+                        arguments.getAt(0, 2));
+                default: return function.call4(this, arguments.getAt(0, 0), arguments.getAt(0, 1),
+                        arguments.getAt(0, 2), arguments.getAt(0, 3));
+            }
+        } finally {
+            if (reuseFrames) release(arguments);
+        }
+    }
+
+    private Object run(LoxCallable function, LoxInstance receiver, Environment frame) {
+        if (function instanceof LoxFunction) {
+            return ((LoxFunction)function).run(this, receiver, frame);
+        }
+        return ((LambdaFunction)function).run(this, frame);
+    }
+
+    private List<Object> evaluate(List<Expr> arguments) {
+        if (arguments.isEmpty()) return Collections.emptyList();
+
+        List<Object> values = new ArrayList<>(arguments.size());
+        for (int i = 0; i < arguments.size(); i++) {
+            values.add(evaluate(arguments.get(i)));
+        }
+        return values;
+    }
+
+    // The method obj.name(...) can call directly, or null if it has to get
+    // the property and call that.
+    LoxFunction findMethod(Object object, Token name, InlineCache cache) {
+        if (!(object instanceof LoxInstance)) return null;
+        return cache.method((LoxInstance)object, name);
+    }
+
+    // Calls method with receiver as "this", or receiver itself if there's
+    // no method.
+    Object invoke(Token paren, Object receiver, LoxFunction method,
+                  List<Object> arguments, InlineCache cache) {
+        if (method == null) return call(paren, receiver, arguments, cache);
+
+        checkArity(paren, method.arity(), arguments.size());
+        Environment frame = LoxFunction.defineArguments(method.frame(this), arguments);
+        return callFrame(paren, receiver, method, frame, cache, false);
+    }
+
+    // Like invoke, except that calls to Lox functions are left to the
+    // trampoline and return TAIL_CALL.
+    Object tailCall(Token paren, Object receiver, LoxFunction method,
+                    List<Object> arguments, InlineCache cache) {
+        Object function = method != null ? method : receiver;
+        if (!(function instanceof LoxFunction || function instanceof LambdaFunction)) {
+            return call(paren, receiver, arguments, cache);
+        }
+
+        checkArity(paren, ((LoxCallable)function).arity(), arguments.size());
+        Environment frame = LoxFunction.defineArguments(
+                argumentFrame(function, arguments.size()), arguments);
+        return callFrame(paren, receiver, method, frame, cache, true);
+    }
+
+    // Makes tail calls until one of them returns a value.
+    Object trampoline(Object result) {
+        while (result == TAIL_CALL) {
+            LoxCallable function = tailFunction;
+            LoxInstance receiver = tailReceiver;
+            Environment frame = tailFrame;
+            tailFunction = null;
+            tailReceiver = null;
+            tailFrame = null;
+
+            result = run(function, receiver, frame);
+        }
+        return result;
+    }
+
+    Object call(Token paren, Object callee, List<Object> arguments, InlineCache cache) {
+        callSite = paren;
+        if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass)callee;
+            checkArity(paren, klass.arity(), arguments.size());
+            return klass.call(this, arguments);
         }
 
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(paren,
                     "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " +
-                    function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+        checkArity(paren, function.arity(), arguments.size());
+        Environment frame = argumentFrame(function, arguments.size());
+        if (frame != null) {
+            LoxFunction.defineArguments(frame, arguments);
+            return callFrame(paren, callee, null, frame, cache, false);
         }
-
         return function.call(this, arguments);
     }
 
+    // What the site can run in place of calling function: a method with
+    // receiver, or a plain function. Bound methods and initializers carry
+    // their "this" with them, so they're always really called.
+    private Inliner.Code inlineable(LoxCallable function, Object receiver, InlineCache cache) {
+        if (!(function instanceof LoxFunction)) return null;
+
+        LoxFunction.FunctionType type = ((LoxFunction)function).type;
+        boolean inlineable = receiver == null ?
+                type == LoxFunction.FunctionType.FUNCTION :
+                type == LoxFunction.FunctionType.METHOD;
+        return inlineable ? cache.inline((LoxFunction)function, this) : null;
+    }
+
+    // Still counts towards maxDepth, so a getter that gets itself overflows
+    // the same way whether or not it's inlined.
+    private Object runInlined(Inliner.Code inlined, LoxInstance receiver, Environment arguments) {
+        enter();
+        try {
+            Inliner.inlinedCalls++;
+            return inlined.run(receiver, arguments);
+        } finally {
+            leave();
+        }
+    }
+
+    private static void checkArity(Token paren, int arity, int count) {
+        if (count != arity) {
+            throw new RuntimeError(paren, "Expected " +
+                    arity + " arguments but got " +
+                    count + ".");
+        }
+    }
+
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(evaluate(expr.object), expr.name, expr.cache);
+    }
+
+    Object getProperty(Object object, Token name, InlineCache cache) {
         if (object instanceof LoxInstance) {
-            Object field = ((LoxInstance) object).get(expr.name);
+            LoxInstance instance = (LoxInstance)object;
+            Object field = cache.get(instance, name);
+            // Getters come back unbound, to run with instance as "this".
             if (field instanceof LoxFunction && ((LoxFunction) field).type == LoxFunction.FunctionType.GETTER) {
-                return ((LoxFunction) field).call(this, Collections.emptyList());
+                LoxFunction getter = (LoxFunction)field;
+                callSite = name;
+                Inliner.Code inlined = cache.inline(getter, this);
+                if (inlined != null) return runInlined(inlined, instance, null);
+                return getter.callMethod(this, instance, getter.frame(this));
             }
             return field;
         }
 
-        throw new RuntimeError(expr.name,
+        throw new RuntimeError(name,
                 "Only instances have properties.");
     }
 
@@ -230,103 +581,144 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Object visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
         return null;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, LoxFunction.FunctionType.FUNCTION);
-        environment.define(stmt.name.lexeme, function);
+    public Object visitFunctionStmt(Stmt.Function stmt) {
+        // A boxed function captures its own Cell, so that has to come first.
+        Cell cell = stmt.boxed ? new Cell(null) : null;
+        if (cell != null) environment.define(stmt.name.lexeme, cell);
+
+        LoxFunction function = new LoxFunction(stmt, environment.capture(stmt.captures),
+                LoxFunction.FunctionType.FUNCTION);
+        if (cell != null) {
+            cell.value = function;
+        } else {
+            environment.define(stmt.name.lexeme, function);
+        }
         return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Object visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
         return null;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Object visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
         return null;
     }
 
     @Override
-    public Void visitPrintAstStmt(Stmt.PrintAst stmt) {
+    public Object visitPrintAstStmt(Stmt.PrintAst stmt) {
         AstPrinter printer = new AstPrinter();
         System.out.println(printer.print(stmt.expression));
         return null;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Object visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Object visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
+        environment.define(stmt.name.lexeme, stmt.boxed ? new Cell(value) : value);
         return null;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Object visitWhileStmt(Stmt.While stmt) {
+        // A body with a scope gets one frame for the whole loop, emptied
+        // before each iteration. Closures copy what they capture, so none
+        // of them can tell.
+        Stmt.Block block = scopedBlock(stmt.body);
+        Environment frame = reuseFrames && block != null ? frame(environment) : null;
         try {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
-        }
-        } catch (Break b) {
-            if (b.label != null && !b.label.equals(stmt.label.lexeme)) {
-                // this is a labeled break, and we don't match, so keep breaking
-                throw b;
+            while (isTruthy(evaluate(stmt.condition))) {
+                Object completion;
+                if (frame != null) {
+                    frame.clear();
+                    completion = executeBlock(block.statements, frame);
+                } else {
+                    completion = execute(stmt.body);
+                }
+                if (completion == stmt) break;
+                if (completion != null) return completion;
+                if (stmt.increment != null) evaluate(stmt.increment);
             }
+            return null;
+        } finally {
+            if (frame != null) release(frame);
         }
-        return null;
+    }
+
+    static Stmt.Block scopedBlock(Stmt stmt) {
+        if (!(stmt instanceof Stmt.Block) || !((Stmt.Block)stmt).scoped) return null;
+        return (Stmt.Block)stmt;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new Break(stmt.label == null ? null : stmt.label.lexeme);
+    public Object visitBreakStmt(Stmt.Break stmt) {
+        return stmt.loop;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.boxed) {
+            ((Cell)environment.getAt(expr.depth, expr.slot)).value = value;
+        } else if (expr.depth >= 0) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            if (expr.global == null) expr.global = globals.global(expr.name.lexeme);
+            Environment.assign(expr.global, expr.name, value);
         }
 
         return value;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Object visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.scoped) return executeBlock(stmt.statements, environment);
+        if (!reuseFrames) {
+            return executeBlock(stmt.statements, new Environment(environment));
+        }
+
+        Environment frame = frame(environment);
+        try {
+            return executeBlock(stmt.statements, frame);
+        } finally {
+            release(frame);
+        }
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Object visitClassStmt(Stmt.Class stmt) {
+        // As for functions, the methods can capture the class's own Cell.
+        Cell cell = stmt.boxed ? new Cell(null) : null;
+        if (cell != null) environment.define(stmt.name.lexeme, cell);
+
         ArrayList<LoxClass> superclasses = new ArrayList<>();
         for (Expr.Variable superklass : stmt.superclasses) {
             Object superclass = evaluate(superklass);
@@ -337,10 +729,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             superclasses.add((LoxClass) superclass);
         }
 
-        environment.define(stmt.name.lexeme, null);
+        // The methods share the class's closure, with "super" just inside it.
+        Environment closure = environment.capture(stmt.captures);
         if (!superclasses.isEmpty()) {
-            environment = new Environment(environment);
-            environment.define("super", null);
+            closure = new Environment(closure, 1);
         }
 
         Map<String, LoxFunction> classMethods = new HashMap<>();
@@ -348,7 +740,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             LoxFunction.FunctionType type = method.name.lexeme.equals("init") ?
                     LoxFunction.FunctionType.INITIALIZER :
                     LoxFunction.FunctionType.CLASS_METHOD;
-            LoxFunction function = new LoxFunction(method, environment, type);
+            LoxFunction function = new LoxFunction(method, closure, type);
             classMethods.put(method.name.lexeme, function);
         }
 
@@ -357,12 +749,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             LoxFunction.FunctionType type = method.name.lexeme.equals("init") ?
                     LoxFunction.FunctionType.INITIALIZER :
                     LoxFunction.FunctionType.METHOD;
-            LoxFunction function = new LoxFunction(method, environment, type);
+            LoxFunction function = new LoxFunction(method, closure, type);
             instanceMethods.put(method.name.lexeme, function);
         }
 
         for (Stmt.Function getter : stmt.getters) {
-            LoxFunction function = new LoxFunction(getter, environment, LoxFunction.FunctionType.GETTER);
+            LoxFunction function = new LoxFunction(getter, closure, LoxFunction.FunctionType.GETTER);
             instanceMethods.put(getter.name.lexeme, function);
         }
 
@@ -373,40 +765,43 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(stmt.name, "Unable to resolve multiple inheritance.");
         }
 
+        // The methods only look these up once they run, so the slots can be
+        // filled in now that the class exists.
+        if (!superclasses.isEmpty()) closure.define("super", klass);
+        if (cell != null) {
+            cell.value = klass;
+        } else {
+            environment.define(stmt.name.lexeme, klass);
+        }
+
         LoxFunction init = (LoxFunction) klass.get("init");
         if (init != null) {
             // already bound
+            callSite = stmt.name;
             init.call(this, Collections.emptyList());
         }
-
-        if (!superclasses.isEmpty()) {
-            environment.superAssign("super", klass);
-            environment = environment.enclosing;
-        }
-
-        environment.assign(stmt.name, klass);
         return null;
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator,
-                                     Object left, Object right) {
+    static void checkNumberOperands(Token operator,
+                                    Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         // nil is only equal to nil.
         if (a == null && b == null) return true;
         if (a == null) return false;
@@ -414,11 +809,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         if (a instanceof Double && ((Double) a).isNaN()) {
             return false;
         }
+        if (a instanceof String) {
+            return b instanceof String && Strings.equal((String)a, (String)b);
+        }
 
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         // Hack. Work around Java adding ".0" to integer-valued doubles.
@@ -433,26 +831,24 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
-    private Object evaluate(Expr expr) {
+    Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Object execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
-
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Object executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
-            for (Stmt statement : statements) {
-                execute(statement);
+            for (int i = 0; i < statements.size(); i++) {
+                Object completion = execute(statements.get(i));
+                if (completion != null) return completion;
             }
+            return null;
         } finally {
             this.environment = previous;
         }
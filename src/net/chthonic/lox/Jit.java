@@ -0,0 +1,164 @@
+package net.chthonic.lox;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/* Once a function has been called more than threshold times its body is
+   compiled to a hidden JVM class, which HotSpot can then optimise like any
+   other Java code. LoxFunction.call hands over to the compiled code, so
+   interpreted and compiled functions still call each other through
+   LoxCallable.call.
+
+   The static helpers at the bottom are what the generated code calls for
+   anything more involved than moving values around.
+ */
+class Jit {
+    static boolean enabled = true;
+    static int threshold = 1000;
+    static String dumpDirectory = null;
+    static int compiledFunctions = 0;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    static CompiledFunction compile(Stmt.Function declaration, LoxFunction.FunctionType type,
+                                    Environment globals) {
+        String className = "net/chthonic/lox/Compiled$" + declaration.name.lexeme;
+        JitCompiler compiler = new JitCompiler(declaration, type, className, globals);
+        byte[] bytes = compiler.compile();
+        if (bytes == null) return null;
+
+        compiledFunctions++;
+        if (dumpDirectory != null) {
+            dump(declaration.name.lexeme + "$" + compiledFunctions, bytes);
+        }
+
+        try {
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+            return (CompiledFunction) hidden.findConstructor(
+                    hidden.lookupClass(),
+                    MethodType.methodType(void.class, Object[].class))
+                    .invoke(compiler.constants());
+        } catch (Throwable e) {
+            throw new AssertionError("Couldn't load compiled " + declaration.name.lexeme, e);
+        }
+    }
+
+    private static void dump(String name, byte[] bytes) {
+        Path path = Paths.get(dumpDirectory, name + ".class");
+        try {
+            Files.createDirectories(path.getParent());
+            Files.write(path, bytes);
+        } catch (IOException e) {
+            System.err.println("Couldn't write " + path + ": " + e.getMessage());
+        }
+    }
+
+    static Object assignAt(Object value, Environment environment, int distance, int slot) {
+        environment.assignAt(distance, slot, value);
+        return value;
+    }
+
+    static Object assignCell(Object value, Environment environment, int distance, int slot) {
+        ((Cell)environment.getAt(distance, slot)).value = value;
+        return value;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return Numbers.box((double)left + (double)right);
+        }
+
+        if (left instanceof String || right instanceof String) {
+            return Interpreter.stringify(left) + Interpreter.stringify(right);
+        }
+
+        throw new RuntimeError(operator,
+                "Operands must be two numbers or two strings.");
+    }
+
+    static double number(Object operand, Token operator) {
+        if (operand instanceof Double) return (double)operand;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static double numberOperand(Object operand, Token operator) {
+        Interpreter.checkNumberOperand(operator, operand);
+        return (double)operand;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    // Where a call's arguments go: straight into the frame of a Lox function
+    // taking that many, or else a scratch frame they're taken back out of
+    // to go through Interpreter.invoke.
+    static Environment frame(Object receiver, LoxFunction method, int count,
+                             Interpreter interpreter) {
+        Environment frame = interpreter.argumentFrame(method != null ? method : receiver, count);
+        return frame != null ? frame : new Environment(SCRATCH, count);
+    }
+
+    private static final Environment SCRATCH = new Environment(null, 0);
+
+    static LoxFunction findMethod(Object object, Token name, InlineCache cache,
+                                  Interpreter interpreter) {
+        return interpreter.findMethod(object, name, cache);
+    }
+
+    static Object call(Object receiver, LoxFunction method, Environment frame, Token paren,
+                       InlineCache cache, Interpreter interpreter) {
+        if (frame.enclosing == SCRATCH) {
+            return interpreter.invoke(paren, receiver, method, frame.locals(), cache);
+        }
+        return interpreter.callFrame(paren, receiver, method, frame, cache, false);
+    }
+
+    static Object tailCall(Object receiver, LoxFunction method, Environment frame, Token paren,
+                           InlineCache cache, Interpreter interpreter) {
+        if (frame.enclosing == SCRATCH) {
+            return interpreter.tailCall(paren, receiver, method, frame.locals(), cache);
+        }
+        return interpreter.callFrame(paren, receiver, method, frame, cache, true);
+    }
+
+    static Object get(Object object, Token name, InlineCache cache, Interpreter interpreter) {
+        return interpreter.getProperty(object, name, cache);
+    }
+
+    static Object checkInstance(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return object;
+    }
+
+    static Object set(Object object, Object value, Token name,
+                      InlineCache cache, Interpreter interpreter) {
+        return interpreter.setProperty((LoxInstance)object, name, value, cache);
+    }
+}
@@ -0,0 +1,749 @@
+package net.chthonic.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Stack;
+
+import static net.chthonic.lox.ClassWriter.*;
+
+/* Translates one function body into the call method of a CompiledFunction.
+
+   Only leaf functions are compiled. Without nested functions, lambdas or
+   classes nothing can capture the body's variables, so they can live in JVM
+   locals rather than Environments; variables from enclosing scopes are still
+   read through the closure. Anything else leaves the function interpreted.
+ */
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String OBJECT = "java/lang/Object";
+    private static final String BOOLEAN = "java/lang/Boolean";
+    private static final String DOUBLE = "java/lang/Double";
+    private static final String TOKEN = "net/chthonic/lox/Token";
+    private static final String ENVIRONMENT = "net/chthonic/lox/Environment";
+    private static final String INTERPRETER = "net/chthonic/lox/Interpreter";
+    private static final String JIT = "net/chthonic/lox/Jit";
+    private static final String CACHE = "net/chthonic/lox/InlineCache";
+    private static final String NUMBERS = "net/chthonic/lox/Numbers";
+    private static final String CELL = "net/chthonic/lox/Cell";
+
+    private static final String BINARY = "(Ljava/lang/Object;Ljava/lang/Object;Lnet/chthonic/lox/Token;)Ljava/lang/Object;";
+    private static final String COMPARISON = "(Ljava/lang/Object;Ljava/lang/Object;Lnet/chthonic/lox/Token;)Z";
+    private static final String CHECK_NUMBER = "(Ljava/lang/Object;Lnet/chthonic/lox/Token;)D";
+
+    // Locals of the generated call method.
+    private static final int THIS = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int FRAME_LOCAL = 2;
+    private static final int CLOSURE_LOCAL = 3;
+
+    // Thrown for anything the compiler doesn't handle, so the function stays
+    // in the tier it's in. Anything else that goes wrong is a bug in the
+    // compiler and isn't caught.
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static class Loop {
+        final Stmt.While stmt;
+        final ClassWriter.Label exit;
+
+        Loop(Stmt.While stmt, ClassWriter.Label exit) {
+            this.stmt = stmt;
+            this.exit = exit;
+        }
+    }
+
+    private final Stmt.Function function;
+    private final LoxFunction.FunctionType type;
+    private final String className;
+    private final Environment globals;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+    // The JVM local holding each slot, one list per scope in the function.
+    private final Stack<List<Integer>> scopes = new Stack<>();
+    private final Stack<Loop> loops = new Stack<>();
+    private int nextLocal = CLOSURE_LOCAL + 1;
+    private ClassWriter.Code code;
+
+    JitCompiler(Stmt.Function function, LoxFunction.FunctionType type, String className,
+                Environment globals) {
+        this.function = function;
+        this.type = type;
+        this.className = className;
+        this.globals = globals;
+    }
+
+    // Returns the class file, or null if the function can't be compiled.
+    byte[] compile() {
+        ClassWriter writer = new ClassWriter(className, OBJECT,
+                Collections.singletonList("net/chthonic/lox/CompiledFunction"));
+        writer.field(ACC_PRIVATE | ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+        ClassWriter.Code init = writer.method(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", 2);
+        init.aload(THIS);
+        init.invoke(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        init.aload(THIS);
+        init.aload(1);
+        init.field(PUTFIELD, className, "constants", "[Ljava/lang/Object;");
+        init.op(RETURN, 0);
+
+        code = writer.method(ACC_PUBLIC, "call",
+                "(Lnet/chthonic/lox/Interpreter;Lnet/chthonic/lox/Environment;)Ljava/lang/Object;",
+                FRAME_LOCAL + 1);
+        try {
+            // The arguments move from the frame into JVM locals, and what's
+            // around the frame is what the body closes over.
+            code.aload(FRAME_LOCAL);
+            code.field(GETFIELD, ENVIRONMENT, "enclosing", "Lnet/chthonic/lox/Environment;");
+            code.astore(CLOSURE_LOCAL);
+            scopes.push(new ArrayList<>());
+            for (int i = 0; i < function.params.size(); i++) {
+                code.aload(FRAME_LOCAL);
+                code.iconst(0);
+                code.iconst(i);
+                code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)Ljava/lang/Object;");
+                declare();
+            }
+            for (Stmt statement : function.body) {
+                execute(statement);
+            }
+            code.op(ACONST_NULL, 1);
+            emitReturn();
+
+            return writer.toByteArray();
+        } catch (Unsupported | ClassWriter.TooLarge e) {
+            return null;
+        }
+    }
+
+    Object[] constants() {
+        return constants.toArray();
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.scoped) scopes.push(new ArrayList<>());
+        for (Stmt statement : stmt.statements) {
+            execute(statement);
+        }
+        if (stmt.scoped) scopes.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        evaluate(stmt.expression);
+        code.op(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassWriter.Label elseBranch = code.label();
+        jumpIfFalse(stmt.condition, elseBranch);
+        execute(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            code.mark(elseBranch);
+        } else {
+            ClassWriter.Label end = code.label();
+            code.jump(GOTO, end);
+            code.mark(elseBranch);
+            execute(stmt.elseBranch);
+            code.mark(end);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        evaluate(stmt.expression);
+        code.invoke(INVOKESTATIC, JIT, "print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintAstStmt(Stmt.PrintAst stmt) {
+        constant(new AstPrinter().print(stmt.expression), OBJECT);
+        code.invoke(INVOKESTATIC, JIT, "print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            escaping(stmt.value);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        emitReturn();
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // Only a closure could capture it, and those aren't compiled.
+        if (stmt.boxed) throw new Unsupported();
+
+        if (stmt.initializer != null) {
+            evaluate(stmt.initializer);
+        } else {
+            code.op(ACONST_NULL, 1);
+        }
+        declare();
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        ClassWriter.Label start = code.label();
+        ClassWriter.Label exit = code.label();
+        code.mark(start);
+        jumpIfFalse(stmt.condition, exit);
+        loops.push(new Loop(stmt, exit));
+        execute(stmt.body);
+        loops.pop();
+        if (stmt.increment != null) {
+            evaluate(stmt.increment);
+            code.op(POP, -1);
+        }
+        code.jump(GOTO, start);
+        code.mark(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        // The Resolver already checked that the loop is in this function.
+        for (int i = loops.size() - 1; i >= 0; i--) {
+            Loop loop = loops.get(i);
+            if (loop.stmt == stmt.loop) {
+                code.jump(GOTO, loop.exit);
+                return null;
+            }
+        }
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        if (expr.depth < 0) {
+            // Globals' Cells never move, so they can be constants.
+            constant(globals.global(expr.name.lexeme), CELL);
+            constant(expr.name, TOKEN);
+            evaluate(expr.value);
+            code.op(DUP_X2, 1);
+            code.invoke(INVOKESTATIC, ENVIRONMENT, "assign",
+                    "(Lnet/chthonic/lox/Cell;Lnet/chthonic/lox/Token;Ljava/lang/Object;)V");
+        } else if (expr.depth < scopes.size()) {
+            if (expr.boxed) throw new Unsupported();
+            evaluate(expr.value);
+            code.op(DUP, 1);
+            code.astore(local(expr.depth, expr.slot));
+        } else {
+            evaluate(expr.value);
+            code.aload(CLOSURE_LOCAL);
+            code.iconst(expr.depth - scopes.size());
+            code.iconst(expr.slot);
+            code.invoke(INVOKESTATIC, JIT, expr.boxed ? "assignCell" : "assignAt",
+                    "(Ljava/lang/Object;Lnet/chthonic/lox/Environment;II)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        ClassWriter.Label right = code.label();
+        ClassWriter.Label end = code.label();
+        jumpIfFalse(expr.left, right);
+        evaluate(expr.middle);
+        code.jump(GOTO, end);
+        code.mark(right);
+        evaluate(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (expr.operator.type == TokenType.COMMA) {
+            evaluate(expr.left);
+            code.op(POP, -1);
+            evaluate(expr.right);
+            return null;
+        }
+
+        if (test(expr)) {
+            box();
+            return null;
+        }
+
+        if (Numbers.isNumber(expr) && Numbers.isArithmetic(expr.operator.type)) {
+            number(expr);
+            boxNumber();
+            return null;
+        }
+
+        evaluate(expr.left);
+        if (expr.type == Type.STRING) {
+            // A PLUS known to be concatenating.
+            stringify();
+            evaluate(expr.right);
+            stringify();
+            code.invoke(INVOKEVIRTUAL, "java/lang/String", "concat",
+                    "(Ljava/lang/String;)Ljava/lang/String;");
+            return null;
+        }
+
+        // A PLUS that might be concatenating strings.
+        evaluate(expr.right);
+        constant(expr.operator, TOKEN);
+        code.invoke(INVOKESTATIC, JIT, "add", BINARY);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            invoke(expr, (Expr.Get)expr.callee);
+            return null;
+        }
+
+        evaluate(expr.callee);
+        code.op(ACONST_NULL, 1);
+        call(expr);
+        return null;
+    }
+
+    // Leaves the receiver and its method on the stack, or the property's
+    // value and null when there's no method to call directly.
+    private void invoke(Expr.Call expr, Expr.Get get) {
+        ClassWriter.Label found = code.label();
+        evaluate(get.object);
+        code.op(DUP, 1);
+        constant(get.name, TOKEN);
+        constant(get.cache, CACHE);
+        code.aload(INTERPRETER_LOCAL);
+        code.invoke(INVOKESTATIC, JIT, "findMethod",
+                "(Ljava/lang/Object;Lnet/chthonic/lox/Token;" +
+                        "Lnet/chthonic/lox/InlineCache;Lnet/chthonic/lox/Interpreter;)Lnet/chthonic/lox/LoxFunction;");
+        code.op(DUP, 1);
+        code.jump(IFNONNULL, found);
+        code.op(POP, -1);
+        constant(get.name, TOKEN);
+        constant(get.cache, CACHE);
+        code.aload(INTERPRETER_LOCAL);
+        code.invoke(INVOKESTATIC, JIT, "get",
+                "(Ljava/lang/Object;Lnet/chthonic/lox/Token;" +
+                        "Lnet/chthonic/lox/InlineCache;Lnet/chthonic/lox/Interpreter;)Ljava/lang/Object;");
+        code.op(ACONST_NULL, 1);
+        code.mark(found);
+
+        call(expr);
+    }
+
+    // With the receiver and method on the stack, as invoke leaves them,
+    // writes the arguments into the frame Jit.frame hands out and makes
+    // the call.
+    private void call(Expr.Call expr) {
+        code.op(DUP2, 2);
+        code.iconst(expr.arguments.size());
+        code.aload(INTERPRETER_LOCAL);
+        code.invoke(INVOKESTATIC, JIT, "frame",
+                "(Ljava/lang/Object;Lnet/chthonic/lox/LoxFunction;I" +
+                        "Lnet/chthonic/lox/Interpreter;)Lnet/chthonic/lox/Environment;");
+        for (Expr argument : expr.arguments) {
+            code.op(DUP, 1);
+            escaping(argument);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "define", "(Ljava/lang/Object;)V");
+        }
+
+        constant(expr.paren, TOKEN);
+        constant(expr.cache, CACHE);
+        code.aload(INTERPRETER_LOCAL);
+        code.invoke(INVOKESTATIC, JIT, expr.isTailCall ? "tailCall" : "call",
+                "(Ljava/lang/Object;Lnet/chthonic/lox/LoxFunction;Lnet/chthonic/lox/Environment;" +
+                        "Lnet/chthonic/lox/Token;Lnet/chthonic/lox/InlineCache;" +
+                        "Lnet/chthonic/lox/Interpreter;)Ljava/lang/Object;");
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        evaluate(expr.object);
+        constant(expr.name, TOKEN);
+        constant(expr.cache, CACHE);
+        code.aload(INTERPRETER_LOCAL);
+        code.invoke(INVOKESTATIC, JIT, "get",
+                "(Ljava/lang/Object;Lnet/chthonic/lox/Token;" +
+                        "Lnet/chthonic/lox/InlineCache;Lnet/chthonic/lox/Interpreter;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        evaluate(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.op(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean) {
+            code.field(GETSTATIC, BOOLEAN, (boolean)expr.value ? "TRUE" : "FALSE",
+                    "Ljava/lang/Boolean;");
+        } else {
+            constant(expr.value, OBJECT);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        ClassWriter.Label end = code.label();
+        evaluate(expr.left);
+        code.op(DUP, 1);
+        truthy();
+        code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+        code.op(POP, -1);
+        evaluate(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        evaluate(expr.object);
+        constant(expr.name, TOKEN);
+        code.invoke(INVOKESTATIC, JIT, "checkInstance",
+                "(Ljava/lang/Object;Lnet/chthonic/lox/Token;)Ljava/lang/Object;");
+        escaping(expr.value);
+        constant(expr.name, TOKEN);
+        constant(expr.cache, CACHE);
+        code.aload(INTERPRETER_LOCAL);
+        code.invoke(INVOKESTATIC, JIT, "set",
+                "(Ljava/lang/Object;Ljava/lang/Object;Lnet/chthonic/lox/Token;" +
+                        "Lnet/chthonic/lox/InlineCache;Lnet/chthonic/lox/Interpreter;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        // "super" and "this" are always bound outside the method itself.
+        if (expr.receiverDepth < scopes.size()) throw new Unsupported();
+
+        code.aload(CLOSURE_LOCAL);
+        code.iconst(expr.depth - scopes.size());
+        code.iconst(expr.slot);
+        code.iconst(expr.receiverDepth - scopes.size());
+        code.iconst(expr.receiverSlot);
+        constant(expr.method, TOKEN);
+        code.invoke(INVOKESTATIC, INTERPRETER, "lookUpSuper",
+                "(Lnet/chthonic/lox/Environment;IIIILnet/chthonic/lox/Token;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        load(expr.keyword, expr.depth, expr.slot, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.BANG) {
+            evaluate(expr.right);
+            truthy();
+            code.iconst(1);
+            code.op(IXOR, -1);
+            box();
+            return null;
+        }
+
+        number(expr);
+        boxNumber();
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        load(expr.name, expr.depth, expr.slot, expr.boxed);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        throw new Unsupported();
+    }
+
+    private void load(Token name, int depth, int slot, boolean boxed) {
+        if (depth < 0) {
+            constant(globals.global(name.lexeme), CELL);
+            constant(name, TOKEN);
+            code.invoke(INVOKESTATIC, ENVIRONMENT, "get",
+                    "(Lnet/chthonic/lox/Cell;Lnet/chthonic/lox/Token;)Ljava/lang/Object;");
+        } else if (depth < scopes.size()) {
+            if (boxed) throw new Unsupported();
+            code.aload(local(depth, slot));
+        } else {
+            code.aload(CLOSURE_LOCAL);
+            code.iconst(depth - scopes.size());
+            code.iconst(slot);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)Ljava/lang/Object;");
+            if (boxed) {
+                code.type(CHECKCAST, CELL);
+                code.field(GETFIELD, CELL, "value", "Ljava/lang/Object;");
+            }
+        }
+    }
+
+    private int local(int depth, int slot) {
+        List<Integer> scope = scopes.get(scopes.size() - 1 - depth);
+        if (slot >= scope.size()) throw new Unsupported();
+        return scope.get(slot);
+    }
+
+    // Stores the value on top of the stack in the next slot of the
+    // innermost scope, mirroring Environment.define.
+    private void declare() {
+        int local = nextLocal++;
+        if (local > 0xff) throw new Unsupported();
+        code.astore(local);
+        scopes.peek().add(local);
+    }
+
+    private void emitReturn() {
+        if (type == LoxFunction.FunctionType.INITIALIZER) {
+            // Initializers always hand back the object they were bound to.
+            code.op(POP, -1);
+            code.aload(CLOSURE_LOCAL);
+            code.iconst(0);
+            code.iconst(0);
+            code.invoke(INVOKEVIRTUAL, ENVIRONMENT, "getAt", "(II)Ljava/lang/Object;");
+        }
+        code.op(ARETURN, -1);
+    }
+
+    private void jumpIfFalse(Expr condition, ClassWriter.Label target) {
+        if (condition instanceof Expr.Grouping) {
+            jumpIfFalse(((Expr.Grouping) condition).expression, target);
+            return;
+        }
+
+        if (!(condition instanceof Expr.Binary) || !test((Expr.Binary) condition)) {
+            evaluate(condition);
+            truthy();
+        }
+        code.jump(IFEQ, target);
+    }
+
+    // Leaves a JVM boolean on the stack for comparisons and equality, which
+    // saves boxing when they're used as conditions.
+    private boolean test(Expr.Binary expr) {
+        String helper;
+        switch (expr.operator.type) {
+            case GREATER: helper = "greater"; break;
+            case GREATER_EQUAL: helper = "greaterEqual"; break;
+            case LESS: helper = "less"; break;
+            case LESS_EQUAL: helper = "lessEqual"; break;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                evaluate(expr.left);
+                evaluate(expr.right);
+                code.invoke(INVOKESTATIC, INTERPRETER, "isEqual",
+                        "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+                if (expr.operator.type == TokenType.BANG_EQUAL) {
+                    code.iconst(1);
+                    code.op(IXOR, -1);
+                }
+                return true;
+            default:
+                return false;
+        }
+
+        if (Numbers.isNumber(expr.left) || Numbers.isNumber(expr.right)) {
+            operands(expr);
+            compare(expr.operator.type);
+            return true;
+        }
+
+        evaluate(expr.left);
+        evaluate(expr.right);
+        constant(expr.operator, TOKEN);
+        code.invoke(INVOKESTATIC, JIT, helper, COMPARISON);
+        return true;
+    }
+
+    /* Expressions Numbers.isNumber() is true of are compiled to leave a
+       double on the stack rather than a Double, so arithmetic nested inside
+       them doesn't box its temporaries. Only the final result is boxed, and
+       a comparison with a numeric side doesn't box anything.
+     */
+    private void number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            code.dconst((double)((Expr.Literal)expr).value);
+        } else if (expr instanceof Expr.Grouping) {
+            number(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (Numbers.isNumber(unary.right)) {
+                number(unary.right);
+            } else {
+                evaluate(unary.right);
+                constant(unary.operator, TOKEN);
+                code.invoke(INVOKESTATIC, JIT, "numberOperand", CHECK_NUMBER);
+            }
+            code.op(DNEG, 0);
+        } else if (!(expr instanceof Expr.Binary) ||
+                !Numbers.isArithmetic(((Expr.Binary)expr).operator.type)) {
+            // Anything else proven to be a number, like a variable, only
+            // needs unboxing.
+            evaluate(expr);
+            code.type(CHECKCAST, DOUBLE);
+            code.invoke(INVOKEVIRTUAL, DOUBLE, "doubleValue", "()D");
+        } else {
+            Expr.Binary binary = (Expr.Binary)expr;
+            operands(binary);
+            switch (binary.operator.type) {
+                case PLUS: code.op(DADD, -2); break;
+                case MINUS: code.op(DSUB, -2); break;
+                case STAR: code.op(DMUL, -2); break;
+                default: code.op(DDIV, -2); break;
+            }
+        }
+    }
+
+    // Leaves both operands of an operator that needs numbers on the stack as
+    // doubles. The left one is evaluated first but checked after the right,
+    // like the helpers do.
+    private void operands(Expr.Binary expr) {
+        if (Numbers.isNumber(expr.left)) {
+            number(expr.left);
+            operand(expr.right, expr.operator);
+            return;
+        }
+
+        evaluate(expr.left);
+        operand(expr.right, expr.operator);
+        // Bring the left operand up from under the right one to check it,
+        // then swap them back.
+        code.op(DUP2_X1, 2);
+        code.op(POP2, -2);
+        constant(expr.operator, TOKEN);
+        code.invoke(INVOKESTATIC, JIT, "number", CHECK_NUMBER);
+        code.op(DUP2_X2, 2);
+        code.op(POP2, -2);
+    }
+
+    private void operand(Expr expr, Token operator) {
+        if (Numbers.isNumber(expr)) {
+            number(expr);
+            return;
+        }
+
+        evaluate(expr);
+        constant(operator, TOKEN);
+        code.invoke(INVOKESTATIC, JIT, "number", CHECK_NUMBER);
+    }
+
+    // Turns the two doubles on the stack into the int the comparison's
+    // helper would have returned. DCMPG and DCMPL pick the result for NaN
+    // that makes the comparison false.
+    private void compare(TokenType type) {
+        ClassWriter.Label isFalse = code.label();
+        ClassWriter.Label end = code.label();
+        switch (type) {
+            case GREATER:
+                code.op(DCMPL, -3);
+                code.jump(IFLE, isFalse);
+                break;
+            case GREATER_EQUAL:
+                code.op(DCMPL, -3);
+                code.jump(IFLT, isFalse);
+                break;
+            case LESS:
+                code.op(DCMPG, -3);
+                code.jump(IFGE, isFalse);
+                break;
+            default:
+                // LESS_EQUAL.
+                code.op(DCMPG, -3);
+                code.jump(IFGT, isFalse);
+                break;
+        }
+        code.iconst(1);
+        code.jump(GOTO, end);
+        code.mark(isFalse);
+        code.iconst(0);
+        code.mark(end);
+    }
+
+    private void stringify() {
+        code.invoke(INVOKESTATIC, INTERPRETER, "stringify",
+                "(Ljava/lang/Object;)Ljava/lang/String;");
+    }
+
+    private void truthy() {
+        code.invoke(INVOKESTATIC, INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+    }
+
+    private void box() {
+        code.invoke(INVOKESTATIC, BOOLEAN, "valueOf", "(Z)Ljava/lang/Boolean;");
+    }
+
+    // A fresh box, which HotSpot can often optimise away when the value
+    // stays in the method. Numbers.box() sometimes hands back a shared box
+    // instead, and that stops it from doing so.
+    private void boxNumber() {
+        code.invoke(INVOKESTATIC, DOUBLE, "valueOf", "(D)Ljava/lang/Double;");
+    }
+
+    // For a value that's leaving the compiled code, whose box can't be
+    // optimised away, a shared box saves allocating one.
+    private void escaping(Expr expr) {
+        if (Numbers.isNumber(expr)) {
+            number(expr);
+            code.invoke(INVOKESTATIC, NUMBERS, "box", "(D)Ljava/lang/Double;");
+        } else {
+            evaluate(expr);
+        }
+    }
+
+    private void constant(Object value, String type) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+
+        code.aload(THIS);
+        code.field(GETFIELD, className, "constants", "[Ljava/lang/Object;");
+        code.iconst(index);
+        code.op(AALOAD, -1);
+        if (!type.equals(OBJECT)) code.type(CHECKCAST, type);
+    }
+
+    private void evaluate(Expr expr) {
+        expr.accept(this);
+    }
+
+    private void execute(Stmt stmt) {
+        stmt.accept(this);
+    }
+}
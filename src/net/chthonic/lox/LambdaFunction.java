@@ -11,20 +11,36 @@ class LambdaFunction implements LoxCallable {
         this.declaration = declaration;
     }
 
+    // As LoxFunction.frame.
+    Environment frame(Interpreter interpreter) {
+        return Interpreter.reuseFrames ? interpreter.frame(closure) : new Environment(closure);
+    }
+
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
+        return interpreter.trampoline(run(interpreter,
+                LoxFunction.defineArguments(frame(interpreter), arguments)));
+    }
+
+    // Runs the body once with the arguments in frame, which can return
+    // Interpreter.TAIL_CALL.
+    Object run(Interpreter interpreter, Environment frame) {
+        boolean[] boxed = declaration.boxedParams;
+        if (boxed != null) {
+            for (int i = 0; i < boxed.length; i++) {
+                if (boxed[i]) frame.assignAt(0, i, new Cell(frame.getAt(0, i)));
+            }
         }
 
+        interpreter.enter();
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+            Object completion = interpreter.executeBlock(declaration.body, frame);
+            if (completion == Interpreter.RETURN) return interpreter.returnValue;
+            return null;
+        } finally {
+            interpreter.leave();
+            if (Interpreter.reuseFrames) interpreter.release(frame);
         }
-        return null;
     }
 
     @Override
@@ -36,4 +52,4 @@ class LambdaFunction implements LoxCallable {
     public String toString() {
         return "<anonymous fn>";
     }
-}
\ No newline at end of file
+}
@@ -3,30 +3,136 @@ package net.chthonic.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
+import net.chthonic.lox.vm.VM;
+
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    // Java stack to allow for each Lox call in the tree-walker. A call takes
+    // 1-2K; the rest is for expressions nested inside it.
+    private static final long STACK_PER_CALL = 16 * 1024;
+    // The most Java stack it gets, whatever --max-depth says. Past the
+    // depth this covers, running out of Java stack is reported as a Lox
+    // stack overflow like reaching the limit is.
+    private static final long MAX_STACK = 256L * 1024 * 1024;
+
+    private static Interpreter interpreter = new Interpreter();
+    private static VM vm = null;
+    private static boolean useVm = false;
+    private static boolean jitStats = false;
+    private static boolean icStats = false;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
-    public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
-        } else {
-            runPrompt();
+    public static void main(String[] args) throws InterruptedException {
+        List<String> scripts = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--vm")) {
+                useVm = true;
+            } else if (arg.startsWith("--max-depth=")) {
+                Interpreter.maxDepth = intOption(arg);
+                if (Interpreter.maxDepth < 1) usage();
+            } else if (arg.equals("--no-frame-reuse")) {
+                Interpreter.reuseFrames = false;
+            } else if (arg.equals("--no-optimize")) {
+                Optimizer.enabled = false;
+            } else if (arg.equals("--optimize-report")) {
+                Optimizer.report = true;
+            } else if (arg.equals("--specialize")) {
+                interpreter = new SpecializingInterpreter();
+            } else if (arg.equals("--no-closures")) {
+                ClosureCompiler.enabled = false;
+            } else if (arg.startsWith("--closure-threshold=")) {
+                ClosureCompiler.threshold = intOption(arg);
+            } else if (arg.equals("--no-jit")) {
+                Jit.enabled = false;
+            } else if (arg.startsWith("--jit-threshold=")) {
+                Jit.threshold = intOption(arg);
+            } else if (arg.startsWith("--jit-dump=")) {
+                Jit.dumpDirectory = arg.substring("--jit-dump=".length());
+            } else if (arg.equals("--jit-stats")) {
+                jitStats = true;
+            } else if (arg.equals("--no-inline")) {
+                Inliner.enabled = false;
+            } else if (arg.startsWith("--inline-budget=")) {
+                Inliner.budget = intOption(arg);
+            } else if (arg.equals("--ic-stats")) {
+                icStats = true;
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                scripts.add(arg);
+            }
+        }
+
+        if (scripts.size() > 1) usage();
+        if (useVm) vm = new VM(Interpreter.maxDepth);
+
+        // Lox calls nest Java calls in the tree-walker, so give it a stack
+        // that can hold maxDepth of them. The VM keeps its frames on the
+        // heap and makes do with the default.
+        long stackSize = useVm ? 0 : Math.min(Interpreter.maxDepth * STACK_PER_CALL, MAX_STACK);
+        Thread thread = new Thread(null, () -> {
+            try {
+                if (scripts.size() == 1) {
+                    runFile(scripts.get(0));
+                } else {
+                    runPrompt();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "main", stackSize);
+        thread.setUncaughtExceptionHandler((t, e) -> {
+            e.printStackTrace();
+            System.exit(70);
+        });
+        try {
+            thread.start();
+        } catch (OutOfMemoryError e) {
+            System.err.println("Unable to make a stack for --max-depth=" +
+                    Interpreter.maxDepth + ".");
+            System.exit(70);
+        }
+        thread.join();
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [--vm] [--no-frame-reuse] [--no-optimize] [--optimize-report] [--specialize]" +
+                " [--no-closures] [--closure-threshold=N]" +
+                " [--no-jit] [--jit-threshold=N] [--jit-dump=DIR] [--jit-stats]" +
+                " [--no-inline] [--inline-budget=N] [--ic-stats] [--max-depth=N]" +
+                " [script]");
+        System.exit(64);
+    }
+
+    private static int intOption(String arg) {
+        try {
+            return Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+        } catch (NumberFormatException e) {
+            usage();
+            return 0;
         }
     }
 
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
         run(new String(bytes, Charset.defaultCharset()));
+        if (jitStats) {
+            System.err.println("JIT compiled " + Jit.compiledFunctions + " functions.");
+        }
+        if (icStats) {
+            System.err.println("Inline caches: " + InlineCache.hits + " hits, " +
+                    InlineCache.misses + " misses, " +
+                    InlineCache.megamorphic + " megamorphic lookups.");
+            System.err.println("Inlining: " + Inliner.inlinedCalls + " calls run in place, " +
+                    Inliner.deoptimizations + " sites undone.");
+        }
         // Indicate an error in the exit code.
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
@@ -52,20 +158,27 @@ public class Lox {
         // Stop if there was a syntax error.
         if (hadError) return;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
         // Stop if there was a resolution error.
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        if (Optimizer.enabled) new Optimizer(resolver).optimize(statements);
+        new TypeInference(resolver).infer(statements);
+
+        if (vm != null) {
+            vm.interpret(statements);
+        } else {
+            interpreter.interpret(statements);
+        }
     }
 
     static void error(int line, String message) {
         report(line, "", message);
     }
 
-    static void error(Token token, String message) {
+    public static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         } else {
@@ -74,7 +187,11 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println("[line " + error.token.line + "] Runtime Error: " + error.getMessage());
+        runtimeError(error.token.line, error.getMessage());
+    }
+
+    public static void runtimeError(int line, String message) {
+        System.err.println("[line " + line + "] Runtime Error: " + message);
         hadRuntimeError = true;
     }
 
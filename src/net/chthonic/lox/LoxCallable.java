@@ -1,8 +1,36 @@
 package net.chthonic.lox;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+/* call takes any number of arguments; call0 to call4 take that many
+   directly, so a call to a native with a handful of arguments needn't put
+   them in a list. A native implements whichever of them its arity needs.
+   Lox functions don't need them: calls write the arguments straight into
+   their frames instead. Callers check the arity first either way.
+ */
 interface LoxCallable {
     int arity();
     Object call(Interpreter interpreter, List<Object> arguments);
-}
\ No newline at end of file
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Collections.singletonList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return call(interpreter, Arrays.asList(a, b, c, d));
+    }
+}
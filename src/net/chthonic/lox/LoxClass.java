@@ -2,21 +2,49 @@ package net.chthonic.lox;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+/* Methods are looked up in tables flattened from the mro when the class is
+   created: methods has everything an instance can call and superMethods
+   everything "super" can reach from this class's methods, i.e. the mro
+   without this class. Classes can't change once they exist, so the tables
+   never need rebuilding. setters maps a property name to its set_ method,
+   so assigning a field needn't build "set_" + name to find out there isn't
+   one; most classes have none at all, which hasSetters says up front.
+
+   For the same reason the initializer and arity are looked up once, and
+   constructing an instance runs init on it directly, with no bound method.
+   New instances get room for as many fields as the last one had when its
+   init was done, so an init that assigns them all doesn't grow the array.
+ */
 class LoxClass extends LoxInstance implements LoxCallable {
     final String name;
+    // Just the methods declared in this class.
+    private final Map<String, LoxFunction> declaredMethods;
     private final Map<String, LoxFunction> methods;
+    private final Map<String, LoxFunction> superMethods;
+    private final Map<String, LoxFunction> setters;
+    private final boolean hasSetters;
     private final List<LoxClass> mro;
+    final LoxFunction initializer;
+    private final int arity;
+    private int fieldCount = 0;
 
     public static final LoxClass Class = new LoxClass("Class");
 
     private LoxClass(String name) {
         super(Class);
         this.name = name;
+        this.declaredMethods = Collections.emptyMap();
         this.methods = Collections.emptyMap();
+        this.superMethods = Collections.emptyMap();
+        this.setters = Collections.emptyMap();
+        this.hasSetters = false;
         this.mro = Collections.singletonList(this);
+        this.initializer = null;
+        this.arity = 0;
     }
 
     LoxClass(String name,
@@ -31,7 +59,13 @@ class LoxClass extends LoxInstance implements LoxCallable {
             this.mro = findMethodResolutionOrder(superclasses);
         }
 
-        this.methods = instanceMethods;
+        this.declaredMethods = instanceMethods;
+        this.methods = flatten(0);
+        this.superMethods = flatten(1);
+        this.setters = setters(methods);
+        this.hasSetters = !setters.isEmpty();
+        this.initializer = methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
         for (Map.Entry<String, LoxFunction> entry : classMethods.entrySet()) {
             LoxFunction boundToClass = entry.getValue().bind(this);
             set(entry.getKey(), boundToClass);
@@ -75,25 +109,36 @@ class LoxClass extends LoxInstance implements LoxCallable {
         return order;
     }
 
-    LoxFunction findMethod(String name) {
-        for (LoxClass ancestor : mro) {
-            if (ancestor.methods.containsKey(name)) {
-                return ancestor.methods.get(name);
-            }
+    // The methods of mro[from:], with earlier classes winning.
+    private Map<String, LoxFunction> flatten(int from) {
+        Map<String, LoxFunction> table = new HashMap<>();
+        for (int i = mro.size() - 1; i >= from; i--) {
+            table.putAll(mro.get(i).declaredMethods);
         }
-
-        return null;
+        return Collections.unmodifiableMap(table);
     }
 
-    LoxFunction findSuperMethod(String name) {
-        for (int i=1; i<mro.size(); i++) {
-            LoxClass ancestor = mro.get(i);
-            if (ancestor.methods.containsKey(name)) {
-                return ancestor.methods.get(name);
+    private static Map<String, LoxFunction> setters(Map<String, LoxFunction> methods) {
+        Map<String, LoxFunction> setters = new HashMap<>();
+        for (Map.Entry<String, LoxFunction> entry : methods.entrySet()) {
+            if (entry.getKey().startsWith("set_")) {
+                setters.put(entry.getKey().substring(4), entry.getValue());
             }
         }
+        return setters.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(setters);
+    }
+
+    // The unbound set_name method, or null if assigning name stores a field.
+    LoxFunction findSetter(String name) {
+        return hasSetters ? setters.get(name) : null;
+    }
 
-        return null;
+    LoxFunction findMethod(String name) {
+        return methods.get(name);
+    }
+
+    LoxFunction findSuperMethod(String name) {
+        return superMethods.get(name);
     }
 
     @Override
@@ -103,18 +148,21 @@ class LoxClass extends LoxInstance implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
-        if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
-        }
+        if (initializer == null) return new LoxInstance(this);
+        return instantiate(interpreter,
+                LoxFunction.defineArguments(initializer.frame(interpreter), arguments));
+    }
+
+    // Runs init on a new instance, with its arguments already in frame.
+    LoxInstance instantiate(Interpreter interpreter, Environment frame) {
+        LoxInstance instance = new LoxInstance(this, fieldCount);
+        initializer.callMethod(interpreter, instance, frame);
+        if (instance.shape.size() > fieldCount) fieldCount = instance.shape.size();
         return instance;
     }
 }
@@ -3,7 +3,7 @@ package net.chthonic.lox;
 import java.util.List;
 
 class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
+    final Stmt.Function declaration;
     private final Environment closure;
     public final FunctionType type;
 
@@ -22,33 +22,108 @@ class LoxFunction implements LoxCallable {
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, type);
+        return new LoxFunction(declaration, bindThis(instance), type);
     }
 
     LoxFunction bind(LoxClass klass) {
-        Environment environment = new Environment(closure);
+        Environment environment = new Environment(closure, 1);
         environment.define("cls", klass);
         return new LoxFunction(declaration, environment, type);
     }
 
+    // Same as bind(instance) and calling that with the arguments in frame,
+    // without creating the bound function.
+    Object callMethod(Interpreter interpreter, LoxInstance instance, Environment frame) {
+        return interpreter.trampoline(run(interpreter, instance, frame));
+    }
+
+    // A frame for a call's arguments: the caller defines them in order and
+    // hands it to run(), which releases it once the call is over.
+    Environment frame(Interpreter interpreter) {
+        return Interpreter.reuseFrames ? interpreter.frame(closure) : new Environment(closure);
+    }
+
+    private Environment bindThis(LoxInstance instance) {
+        return bindThis(new Environment(closure, 1), instance);
+    }
+
+    private Environment bindThis(Environment environment, LoxInstance instance) {
+        environment.define("this", instance);
+        return environment;
+    }
+
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
+        return interpreter.trampoline(run(interpreter, null,
+                defineArguments(frame(interpreter), arguments)));
+    }
+
+    // Runs the body once with the arguments in frame, and instance as "this"
+    // if it isn't null. This can return Interpreter.TAIL_CALL.
+    Object run(Interpreter interpreter, LoxInstance instance, Environment frame) {
+        // The frames for "this" and the parameters are reused once the call
+        // is over.
+        boolean reuse = Interpreter.reuseFrames;
+        if (instance != null) {
+            frame.enclosing = bindThis(
+                    reuse ? interpreter.frame(closure) : new Environment(closure, 1), instance);
+        }
+        // Parameters that closures capture and assign go in Cells, now that
+        // the caller has put the arguments in place.
+        boolean[] boxed = declaration.boxedParams;
+        if (boxed != null) {
+            for (int i = 0; i < boxed.length; i++) {
+                if (boxed[i]) frame.assignAt(0, i, new Cell(frame.getAt(0, i)));
+            }
         }
+        if (!declaration.finalTier) tierUp(interpreter);
 
+        interpreter.enter();
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (type == FunctionType.INITIALIZER) return closure.getAt(0, "this");
-            return returnValue.value;
+            CompiledFunction compiled = declaration.compiled;
+            if (compiled != null) return compiled.call(interpreter, frame);
+
+            Object completion = interpreter.executeBlock(declaration.body, frame);
+            // "this" is the only slot in the bound environment.
+            if (type == FunctionType.INITIALIZER) return frame.getAt(1, 0);
+            if (completion == Interpreter.RETURN) return interpreter.returnValue;
+            return null;
+        } finally {
+            interpreter.leave();
+            if (reuse) {
+                if (instance != null) interpreter.release(frame.enclosing);
+                interpreter.release(frame);
+            }
+        }
+    }
+
+    static Environment defineArguments(Environment frame, List<Object> arguments) {
+        for (int i = 0; i < arguments.size(); i++) {
+            frame.define(arguments.get(i));
+        }
+        return frame;
+    }
+
+    // Functions start out interpreted, get closure compiled once they're
+    // warm and go to the Jit once they're hot. If the Jit can't take a
+    // function it stays in whatever tier it's reached.
+    private void tierUp(Interpreter interpreter) {
+        int calls = ++declaration.calls;
+        if (Jit.enabled && calls > Jit.threshold) {
+            CompiledFunction compiled = Jit.compile(declaration, type, interpreter.globals);
+            if (compiled == null && declaration.compiled == null && ClosureCompiler.enabled) {
+                compiled = ClosureCompiler.compile(declaration, type, interpreter);
+            }
+            if (compiled != null) declaration.compiled = compiled;
+            declaration.finalTier = true;
+        } else if (ClosureCompiler.enabled && calls > ClosureCompiler.threshold &&
+                declaration.compiled == null) {
+            declaration.compiled = ClosureCompiler.compile(declaration, type, interpreter);
+        }
+
+        if (!Jit.enabled && (declaration.compiled != null || !ClosureCompiler.enabled)) {
+            declaration.finalTier = true;
         }
-        if (type == FunctionType.INITIALIZER) return closure.getAt(0, "this");
-        return null;
     }
 
     @Override
@@ -1,28 +1,40 @@
 package net.chthonic.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
-    private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final LoxClass klass;
+    Shape shape = Shape.EMPTY;
+    Object[] fields = NO_FIELDS;
 
     LoxInstance(LoxClass klass) {
         this.klass = klass;
     }
 
+    // With room for that many fields up front.
+    LoxInstance(LoxClass klass, int fieldCount) {
+        this.klass = klass;
+        if (fieldCount > 0) fields = new Object[fieldCount];
+    }
+
     // This is for class initializers
     Object get(String name) {
-        return fields.get(name);
+        int index = shape.indexOf(name);
+        return index < 0 ? null : fields[index];
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
+        int index = shape.indexOf(name.lexeme);
+        if (index >= 0) return fields[index];
 
         LoxFunction method = klass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
+        if (method != null) {
+            // Getters are left unbound for the caller to run.
+            if (method.type == LoxFunction.FunctionType.GETTER) return method;
+            return method.bind(this);
+        }
 
         throw new RuntimeError(name,
                 "Undefined property '" + name.lexeme + "'.");
@@ -30,18 +42,33 @@ class LoxInstance {
 
     // This is for class methods
     void set(String name, Object value) {
-        fields.put(name, value);
+        int index = shape.indexOf(name);
+        if (index < 0) index = addField(name);
+        fields[index] = value;
     }
 
+    // Returns the setter, unbound, for the caller to run instead if the
+    // class has one.
     LoxFunction set(Token name, Object value) {
-        LoxFunction method = klass.findMethod("set_" + name.lexeme);
-        if (method != null) {
-            return method.bind(this);
-        }
-        fields.put(name.lexeme, value);
+        LoxFunction setter = klass.findSetter(name.lexeme);
+        if (setter != null) return setter;
+        set(name.lexeme, value);
         return null;
     }
 
+    private int addField(String name) {
+        transition(shape.with(name));
+        return shape.size() - 1;
+    }
+
+    // Moves to a shape with one more field, making room for it.
+    void transition(Shape next) {
+        shape = next;
+        if (next.size() > fields.length) {
+            fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+        }
+    }
+
     @Override
     public String toString() {
         return klass.name + " instance";
@@ -0,0 +1,49 @@
+package net.chthonic.lox;
+
+/* Loop counters, indexes and most arithmetic results are small whole
+   numbers, so their boxes are made once up front and shared; producing one
+   of those doesn't allocate. Anything that boxes the result of arithmetic
+   goes through box().
+
+   Better still is not boxing at all: the interpreter, ClosureCompiler and
+   JitCompiler keep the expressions isNumber() picks out as plain doubles
+   until their final result.
+ */
+class Numbers {
+    private static final int LOWEST = -128;
+    private static final int HIGHEST = 1023;
+
+    private static final Double[] cache = new Double[HIGHEST - LOWEST + 1];
+
+    static {
+        for (int i = LOWEST; i <= HIGHEST; i++) {
+            cache[i - LOWEST] = (double)i;
+        }
+    }
+
+    static Double box(double value) {
+        int whole = (int)value;
+        // -0 is whole too, but it has to stay distinct from 0.
+        if (whole == value && whole >= LOWEST && whole <= HIGHEST &&
+                (whole != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            return cache[whole - LOWEST];
+        }
+        return value;
+    }
+
+    // Whether TypeInference proved expr can only produce a number, if it
+    // doesn't throw.
+    static boolean isNumber(Expr expr) {
+        return expr.type == Type.NUMBER;
+    }
+
+    static boolean isArithmetic(TokenType type) {
+        return type == TokenType.PLUS || type == TokenType.MINUS ||
+                type == TokenType.STAR || type == TokenType.SLASH;
+    }
+
+    static boolean isComparison(TokenType type) {
+        return type == TokenType.GREATER || type == TokenType.GREATER_EQUAL ||
+                type == TokenType.LESS || type == TokenType.LESS_EQUAL;
+    }
+}
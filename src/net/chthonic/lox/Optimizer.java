@@ -0,0 +1,412 @@
+package net.chthonic.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Runs between the Resolver and the interpreter, rewriting the tree into a
+   cheaper one that does the same thing:
+   - operators, ternaries and logical expressions on literals are folded to
+     a literal, unless doing the operation would be a runtime error
+   - an if or while whose condition is a literal keeps only what can run,
+     and statements after a return or break are dropped
+   - stores to variables the Resolver found are never read are dropped,
+     keeping whatever side effects the value has
+
+   Nodes are only rebuilt when something under them changed, and what the
+   Resolver recorded on them is carried over. Declarations that can run are
+   never removed, since locals are stored by position. print_ast shows the
+   tree as it was written, so its expression is left alone.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    static boolean enabled = true;
+    static boolean report = false;
+
+    private final Resolver resolver;
+    private final AstPrinter printer = new AstPrinter();
+    // Every break seen so far, so a rebuilt loop can take over the ones
+    // that pointed at the old one.
+    private final List<Stmt.Break> breaks = new ArrayList<>();
+
+    Optimizer(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    void optimize(List<Stmt> statements) {
+        replace(statements, optimizeStatements(statements));
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // Null if the statement can go.
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    // For a statement that has to stay a statement, like a loop body.
+    private Stmt optimizeBody(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        return optimized == null ? new Stmt.Block(new ArrayList<>()) : optimized;
+    }
+
+    // Returns the same list if nothing changed.
+    private List<Stmt> optimizeStatements(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>();
+        boolean changed = false;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt optimized;
+            if (statement instanceof Stmt.Var && isDeadStore((Stmt.Var)statement)) {
+                optimized = dropInitializer((Stmt.Var)statement, result);
+            } else {
+                optimized = optimize(statement);
+            }
+
+            if (optimized != statement) changed = true;
+            if (optimized == null) continue;
+            result.add(optimized);
+
+            Token exit = exit(optimized);
+            if (exit != null && i < statements.size() - 1) {
+                note(exit, "Removed " + (statements.size() - 1 - i) +
+                        " unreachable statement(s) after '" + exit.lexeme + "'.");
+                changed = true;
+                break;
+            }
+        }
+        return changed ? result : statements;
+    }
+
+    // Function bodies are referred to from elsewhere, so they're changed in
+    // place rather than replaced.
+    private static void replace(List<Stmt> statements, List<Stmt> optimized) {
+        if (optimized == statements) return;
+        statements.clear();
+        statements.addAll(optimized);
+    }
+
+    // The return or break that means nothing after stmt runs, if there is one.
+    private static Token exit(Stmt stmt) {
+        if (stmt instanceof Stmt.Return) return ((Stmt.Return)stmt).keyword;
+        if (stmt instanceof Stmt.Break) return ((Stmt.Break)stmt).keyword;
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)stmt).statements;
+            if (!statements.isEmpty()) return exit(statements.get(statements.size() - 1));
+        }
+        return null;
+    }
+
+    private boolean isDeadStore(Stmt.Var stmt) {
+        Resolver.VariableUsage variable = resolver.declarations.get(stmt);
+        return stmt.initializer != null && variable != null && !variable.isRead();
+    }
+
+    // Declares the variable without storing anything in it, evaluating the
+    // initializer first if it can have side effects.
+    private Stmt dropInitializer(Stmt.Var stmt, List<Stmt> result) {
+        note(stmt.name, "Dropped store to '" + stmt.name.lexeme + "'.");
+        Expr initializer = optimize(stmt.initializer);
+        if (!(initializer instanceof Expr.Literal) && !(initializer instanceof Expr.Lambda)) {
+            result.add(new Stmt.Expression(initializer));
+        }
+        return var(stmt, null);
+    }
+
+    private Expr.Literal fold(Expr expr, Token token, Object value) {
+        note(token, "Folded " + printer.print(expr) + " to " +
+                Interpreter.stringify(value) + ".");
+        if (value instanceof String) value = Strings.intern((String)value);
+        return new Expr.Literal(value, token);
+    }
+
+    private static void note(Token token, String message) {
+        if (report) System.err.println("[line " + token.line + "] " + message);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+
+        Resolver.VariableUsage variable = resolver.bindings.get(expr);
+        if (variable != null && !variable.isRead()) {
+            note(expr.name, "Dropped store to '" + expr.name.lexeme + "'.");
+            return value;
+        }
+
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.boxed = expr.boxed;
+        return assign;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr left = optimize(expr.left);
+        if (left instanceof Expr.Literal) {
+            boolean condition = Interpreter.isTruthy(((Expr.Literal)left).value);
+            note(expr.operator1, "Folded the condition of " + printer.print(expr) + ".");
+            return optimize(condition ? expr.middle : expr.right);
+        }
+
+        Expr middle = optimize(expr.middle);
+        Expr right = optimize(expr.right);
+        if (left == expr.left && middle == expr.middle && right == expr.right) return expr;
+        return new Expr.Ternary(left, expr.operator1, middle, expr.operator2, right);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (left instanceof Expr.Literal && expr.operator.type == TokenType.COMMA) {
+            note(expr.operator, "Dropped the unused " + printer.print(left) + ".");
+            return right;
+        }
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            try {
+                Object value = Interpreter.binary(expr.operator,
+                        ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+                return fold(expr, expr.operator, value);
+            } catch (RuntimeError error) {
+                // Leave it to fail when it runs.
+            }
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = optimizeArguments(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+
+        Expr.Call call = new Expr.Call(callee, expr.paren, arguments);
+        call.isTailCall = expr.isTailCall;
+        return call;
+    }
+
+    // Returns the same list if nothing changed.
+    private List<Expr> optimizeArguments(List<Expr> exprs) {
+        List<Expr> result = new ArrayList<>(exprs.size());
+        boolean changed = false;
+        for (Expr expr : exprs) {
+            Expr optimized = optimize(expr);
+            if (optimized != expr) changed = true;
+            result.add(optimized);
+        }
+        return changed ? result : exprs;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            boolean isOr = expr.operator.type == TokenType.OR;
+            if (truthy == isOr) {
+                // Short-circuits to the left operand.
+                return fold(expr, expr.operator, ((Expr.Literal)left).value);
+            }
+            note(expr.operator, "Folded " + printer.print(expr) + " to its right operand.");
+            return optimize(expr.right);
+        }
+
+        Expr right = optimize(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            if (expr.operator.type == TokenType.BANG) {
+                return fold(expr, expr.operator, !Interpreter.isTruthy(value));
+            }
+            if (value instanceof Double) {
+                return fold(expr, expr.operator, -(double)value);
+            }
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        replace(expr.body, optimizeStatements(expr.body));
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = optimizeStatements(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.scoped = stmt.scoped;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        for (Stmt.Function method : stmt.instanceMethods) {
+            optimize(method);
+        }
+        for (Stmt.Function method : stmt.classMethods) {
+            optimize(method);
+        }
+        for (Stmt.Function getter : stmt.getters) {
+            optimize(getter);
+        }
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        replace(stmt.body, optimizeStatements(stmt.body));
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)condition).value);
+            Stmt branch = truthy ? stmt.thenBranch : stmt.elseBranch;
+            note(((Expr.Literal)condition).token, "Condition is always " + truthy +
+                    (branch == null ? ", removed the if." :
+                            ", kept only the " + (truthy ? "then" : "else") + " branch."));
+            return branch == null ? null : optimize(branch);
+        }
+
+        Stmt thenBranch = optimizeBody(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+                elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitPrintAstStmt(Stmt.PrintAst stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return var(stmt, initializer);
+    }
+
+    private static Stmt.Var var(Stmt.Var stmt, Expr initializer) {
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.boxed = stmt.boxed;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        int firstBreak = breaks.size();
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal &&
+                !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            note(stmt.keyword, "Removed a loop whose condition is always false.");
+            return null;
+        }
+
+        Stmt body = optimizeBody(stmt.body);
+        Expr increment = stmt.increment == null ? null : optimize(stmt.increment);
+        if (condition == stmt.condition && body == stmt.body && increment == stmt.increment) {
+            return stmt;
+        }
+
+        Stmt.While loop = new Stmt.While(stmt.keyword, stmt.label, condition, body, increment);
+        for (int i = firstBreak; i < breaks.size(); i++) {
+            Stmt.Break exit = breaks.get(i);
+            if (exit.loop == stmt) exit.loop = loop;
+        }
+        return loop;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        breaks.add(stmt);
+        return stmt;
+    }
+}
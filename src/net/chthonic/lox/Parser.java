@@ -64,6 +64,7 @@ class Parser {
     }
 
     private Stmt forStatement() {
+        Token keyword = previous();
         Token label = null;
         if (!check(LEFT_PAREN)) {
             label = consume(IDENTIFIER, "Expect loop label.");
@@ -93,14 +94,10 @@ class Parser {
         consume(RIGHT_PAREN, "Expect ')' after for clauses.");
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(
-                    body,
-                    new Stmt.Expression(increment)));
-        }
-
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(label, condition, body);
+        // The loop runs the increment itself, after the body and outside
+        // its scope, so the body stays a block of its own.
+        if (condition == null) condition = new Expr.Literal(true, keyword);
+        body = new Stmt.While(keyword, label, condition, body, increment);
 
         if (initializer != null) {
             body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -136,6 +133,7 @@ class Parser {
     }
 
     private Stmt whileStatement() {
+        Token keyword = previous();
         Token label = null;
         if (!check(LEFT_PAREN)) {
             label = consume(IDENTIFIER, "Expect loop label.");
@@ -146,7 +144,7 @@ class Parser {
         consume(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
-        return new Stmt.While(label, condition, body);
+        return new Stmt.While(keyword, label, condition, body, null);
     }
 
     private List<Stmt> block() {
@@ -459,12 +457,12 @@ class Parser {
     }
 
     private Expr primary() {
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
+        if (match(FALSE)) return new Expr.Literal(false, previous());
+        if (match(TRUE)) return new Expr.Literal(true, previous());
+        if (match(NIL)) return new Expr.Literal(null, previous());
 
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(previous().literal, previous());
         }
 
         if (match(SUPER)) {
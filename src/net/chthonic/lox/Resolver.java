@@ -3,15 +3,17 @@ package net.chthonic.lox;
 import java.util.*;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, VariableUsage>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
     private Stack<Stmt.While> loops = new Stack<>();
     private ClassType currentClass = ClassType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
+    // For the Optimizer and TypeInference: the variable each local read,
+    // assignment or declaration refers to, and every variable a type can be
+    // inferred for.
+    final Map<Expr, VariableUsage> bindings = new IdentityHashMap<>();
+    final Map<Stmt.Var, VariableUsage> declarations = new IdentityHashMap<>();
+    final List<VariableUsage> typedVariables = new ArrayList<>();
 
     private enum ClassType {
         NONE,
@@ -35,14 +37,71 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         USED
     }
 
-    private class VariableUsage {
+    static class VariableUsage {
         public Token token;  // for nice error messages
         public VariableState state;
+        public final int slot;
         public Set<Stmt.While> usedInLoops = new HashSet<>();
-
-        public VariableUsage(Token token, VariableState state) {
+        // Everything ever stored in a var: its initializer and the value of
+        // each assignment to it. Null for other variables, like parameters,
+        // and for a var that starts out nil.
+        public List<Expr> values = null;
+        // Worked out from values by TypeInference.
+        public Type type = null;
+        // A variable a closure captures is copied into it, unless it can
+        // change afterwards: then it's boxed in a Cell they share. Function
+        // and class names count as changing, since the closures inside them
+        // are made before the name is defined.
+        boolean captured = false;
+        boolean mutable = false;
+        boolean boxed = false;
+        // The nodes to mark if it ends up boxed: its declaration, and every
+        // read and assignment.
+        final List<Object> sites = new ArrayList<>();
+
+        public VariableUsage(Token token, VariableState state, int slot) {
             this.token = token;
             this.state = state;
+            this.slot = slot;
+        }
+
+        // Once resolution is done, whether anything ever reads the variable.
+        // Anything else unread is an error, so in a program that runs this
+        // is only false for `_`.
+        boolean isRead() {
+            return state == VariableState.USED;
+        }
+    }
+
+    private static class Scope {
+        final Map<String, VariableUsage> variables = new HashMap<>();
+        // Every declaration gets a fresh slot, even a redeclared `_`,
+        // because the interpreter defines locals positionally.
+        int slots = 0;
+        /* Only for the scope at the bottom of a function, lambda or class,
+           which stands for its closure: the variables it takes from the
+           scopes around it, in slot order, and where each is found at the
+           point the closure is made. Null for every other scope.
+         */
+        final Map<String, Binding> captured;
+        final List<Capture> captures;
+
+        Scope(List<Capture> captures) {
+            this.captures = captures;
+            this.captured = captures == null ? null : new HashMap<>();
+        }
+    }
+
+    // Where a variable is, seen from some scope.
+    private static class Binding {
+        final int depth;
+        final int slot;
+        final VariableUsage usage;
+
+        Binding(int depth, int slot, VariableUsage usage) {
+            this.depth = depth;
+            this.slot = slot;
+            this.usage = usage;
         }
     }
 
@@ -61,11 +120,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     private void beginScope() {
-        scopes.push(new HashMap<>());
+        scopes.push(new Scope(null));
+    }
+
+    // Closures only keep what they capture, so the function, lambda or class
+    // being resolved starts from a scope of its own captures.
+    private void beginClosure() {
+        scopes.push(new Scope(new ArrayList<>()));
+    }
+
+    private List<Capture> endClosure() {
+        return scopes.pop().captures;
     }
 
     private void endScope() {
-        for (VariableUsage usage : scopes.peek().values()) {
+        for (VariableUsage usage : scopes.peek().variables.values()) {
+            if (usage.captured && usage.mutable) box(usage);
+
             switch (usage.state) {
                 case DECLARED:
                     // should be impossible
@@ -81,36 +152,108 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         scopes.pop();
     }
 
+    private static void box(VariableUsage usage) {
+        usage.boxed = true;
+        for (Object site : usage.sites) {
+            if (site instanceof Expr.Variable) {
+                ((Expr.Variable) site).boxed = true;
+            } else if (site instanceof Expr.Assign) {
+                ((Expr.Assign) site).boxed = true;
+            } else if (site instanceof Stmt.Var) {
+                ((Stmt.Var) site).boxed = true;
+            } else if (site instanceof Stmt.Function) {
+                ((Stmt.Function) site).boxed = true;
+            } else if (site instanceof Stmt.Class) {
+                ((Stmt.Class) site).boxed = true;
+            }
+        }
+    }
+
+    // The variable just declared in the innermost scope, or null for a global.
+    private VariableUsage declared(Token name) {
+        if (scopes.isEmpty()) return null;
+        return scopes.peek().variables.get(name.lexeme);
+    }
+
     private void declare(Token name) {
         if (scopes.isEmpty()) return;
 
-        Map<String, VariableUsage> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        if (scopes.peek().variables.containsKey(name.lexeme)) {
             if (!name.lexeme.equals("_"))
                 Lox.error(name,
                         "Variable with this name already declared in this scope.");
         }
 
-        scope.put(name.lexeme, new VariableUsage(name, VariableState.DECLARED));
+        addVariable(name.lexeme, name, VariableState.DECLARED);
+    }
+
+    private void addVariable(String name, Token token, VariableState state) {
+        Scope scope = scopes.peek();
+        scope.variables.put(name, new VariableUsage(token, state, scope.slots++));
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().get(name.lexeme).state = VariableState.DEFINED;
+        scopes.peek().variables.get(name.lexeme).state = VariableState.DEFINED;
     }
 
     private VariableUsage resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return scopes.get(i).get(name.lexeme);
-            }
-        }
+        Binding binding = find(name.lexeme, scopes.size() - 1);
 
         // Not found. Assume it is global.
+        if (binding == null) return null;
+
+        bind(expr, binding.depth, binding.slot);
+        bindings.put(expr, binding.usage);
+        binding.usage.sites.add(expr);
+        return binding.usage;
+    }
+
+    // Where name is as seen from scopes[top]. Looking past the bottom of a
+    // closure captures the variable there, and so on out through every
+    // closure in between.
+    private Binding find(String name, int top) {
+        for (int i = top; i >= 0; i--) {
+            Scope scope = scopes.get(i);
+            if (scope.captures == null) {
+                VariableUsage usage = scope.variables.get(name);
+                if (usage != null) return new Binding(top - i, usage.slot, usage);
+                continue;
+            }
+
+            Binding captured = scope.captured.get(name);
+            if (captured == null) {
+                Binding outside = find(name, i - 1);
+                if (outside == null) return null;
+
+                outside.usage.captured = true;
+                captured = new Binding(0, scope.captures.size(), outside.usage);
+                scope.captures.add(new Capture(outside.depth, outside.slot));
+                scope.captured.put(name, captured);
+            }
+            return new Binding(top - i, captured.slot, captured.usage);
+        }
         return null;
     }
 
+    // Record where the variable lives on the node itself, so the interpreter
+    // can go straight to the slot.
+    private void bind(Expr expr, int depth, int slot) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable) expr).depth = depth;
+            ((Expr.Variable) expr).slot = slot;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign) expr).depth = depth;
+            ((Expr.Assign) expr).slot = slot;
+        } else if (expr instanceof Expr.This) {
+            ((Expr.This) expr).depth = depth;
+            ((Expr.This) expr).slot = slot;
+        } else if (expr instanceof Expr.Super) {
+            ((Expr.Super) expr).depth = depth;
+            ((Expr.Super) expr).slot = slot;
+        }
+    }
+
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
@@ -121,7 +264,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             define(param);
         }
         resolve(function.body);
+        List<VariableUsage> params = parameters(function.params);
         endScope();
+        function.boxedParams = boxed(params);
         currentFunction = enclosingFunction;
     }
 
@@ -135,7 +280,29 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             define(param);
         }
         resolve(lambda.body);
+        List<VariableUsage> params = parameters(lambda.params);
         endScope();
+        lambda.boxedParams = boxed(params);
+    }
+
+    private List<VariableUsage> parameters(List<Token> params) {
+        List<VariableUsage> usages = new ArrayList<>();
+        for (Token param : params) {
+            usages.add(scopes.peek().variables.get(param.lexeme));
+        }
+        return usages;
+    }
+
+    // Only known once the parameters' scope has ended. Null if none of them
+    // are, so calls can skip the check.
+    private static boolean[] boxed(List<VariableUsage> params) {
+        boolean[] boxed = null;
+        for (int i = 0; i < params.size(); i++) {
+            if (!params.get(i).boxed) continue;
+            if (boxed == null) boxed = new boolean[params.size()];
+            boxed[i] = true;
+        }
+        return boxed;
     }
 
     @Override
@@ -144,6 +311,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         VariableUsage usage = resolveLocal(expr, expr.name);
         if (usage != null) {
+            usage.mutable = true;
+            if (usage.values != null) usage.values.add(expr.value);
             usage.token = expr.name;
             if (loops.isEmpty() || usage.state != VariableState.USED) {
                 usage.state = VariableState.ASSIGNED;
@@ -224,10 +393,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword,
                     "Cannot use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        if (resolveLocal(expr, expr.keyword) != null) resolveReceiver(expr);
         return null;
     }
 
+    // The object the method found through "super" is bound to: "this" in
+    // an instance method or "cls" in a class method, whichever was declared
+    // just inside "super".
+    private void resolveReceiver(Expr.Super expr) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).variables.containsKey("super")) {
+                String receiver = scopes.get(i + 1).variables.containsKey("this") ? "this" : "cls";
+                Binding binding = find(receiver, scopes.size() - 1);
+                expr.receiverDepth = binding.depth;
+                expr.receiverSlot = binding.slot;
+                return;
+            }
+        }
+    }
+
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClass == ClassType.NONE) {
@@ -269,19 +453,39 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         // Don't allow break to jump out of a function
         Stack<Stmt.While> enclosingLoops = loops;
         loops = new Stack<>();
+        beginClosure();
         resolveLambda(expr);
+        expr.captures = endClosure();
         loops = enclosingLoops;
         return null;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
+        // A block that declares nothing doesn't need a scope, so it runs in
+        // the one around it.
+        stmt.scoped = declares(stmt.statements);
+        if (!stmt.scoped) {
+            resolve(stmt.statements);
+            return null;
+        }
+
         beginScope();
         resolve(stmt.statements);
         endScope();
         return null;
     }
 
+    private static boolean declares(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function ||
+                    statement instanceof Stmt.Class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
         ClassType enclosingClass = currentClass;
@@ -289,6 +493,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         declare(stmt.name);
         define(stmt.name);
+        VariableUsage name = declared(stmt.name);
+        if (name != null) {
+            name.mutable = true;
+            name.sites.add(stmt);
+        }
 
         if (stmt.superclasses.stream().anyMatch(
                 superclass -> stmt.name.lexeme.equals(superclass.name.lexeme))) {
@@ -301,13 +510,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             for (Expr.Variable superclass : stmt.superclasses) {
                 resolve(superclass);
             }
+        }
 
+        // The methods all share one closure.
+        beginClosure();
+        if (!stmt.superclasses.isEmpty()) {
             beginScope();
-            scopes.peek().put("super", new VariableUsage(stmt.name, VariableState.USED));
+            addVariable("super", stmt.name, VariableState.USED);
         }
 
         beginScope();
-        scopes.peek().put("cls", new VariableUsage(stmt.name, VariableState.USED));
+        addVariable("cls", stmt.name, VariableState.USED);
 
         for (Stmt.Function classMethod : stmt.classMethods) {
             FunctionType declaration = FunctionType.METHOD;
@@ -323,7 +536,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         endScope();
 
         beginScope();
-        scopes.peek().put("this", new VariableUsage(stmt.name, VariableState.USED));
+        addVariable("this", stmt.name, VariableState.USED);
 
         for (Stmt.Function instanceMethod : stmt.instanceMethods) {
             FunctionType declaration = FunctionType.METHOD;
@@ -341,6 +554,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         endScope();
 
         if (!stmt.superclasses.isEmpty()) endScope();
+        stmt.captures = endClosure();
 
         currentClass = enclosingClass;
         return null;
@@ -356,11 +570,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitFunctionStmt(Stmt.Function stmt) {
         declare(stmt.name);
         define(stmt.name);
+        VariableUsage name = declared(stmt.name);
+        if (name != null) {
+            name.mutable = true;
+            name.sites.add(stmt);
+        }
 
         // Don't allow break to jump out of a function
         Stack<Stmt.While> enclosingLoops = loops;
         loops = new Stack<>();
+        beginClosure();
         resolveFunction(stmt, FunctionType.FUNCTION);
+        stmt.captures = endClosure();
         loops = enclosingLoops;
         return null;
     }
@@ -395,15 +616,42 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             if (currentFunction == FunctionType.INITIALIZER) {
                 Lox.error(stmt.keyword,
                         "Cannot return a value from an initializer.");
+            } else {
+                markTailCalls(stmt.value);
             }
             resolve(stmt.value);
         }
         return null;
     }
 
+    // Marks the calls whose result would be returned as it is.
+    private void markTailCalls(Expr expr) {
+        if (expr instanceof Expr.Call) {
+            ((Expr.Call) expr).isTailCall = true;
+        } else if (expr instanceof Expr.Grouping) {
+            markTailCalls(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Ternary) {
+            markTailCalls(((Expr.Ternary) expr).middle);
+            markTailCalls(((Expr.Ternary) expr).right);
+        } else if (expr instanceof Expr.Logical) {
+            markTailCalls(((Expr.Logical) expr).right);
+        }
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
         declare(stmt.name);
+        if (!scopes.isEmpty()) {
+            VariableUsage usage = declared(stmt.name);
+            declarations.put(stmt, usage);
+            usage.sites.add(stmt);
+        }
+        if (!scopes.isEmpty() && stmt.initializer != null) {
+            VariableUsage usage = scopes.peek().variables.get(stmt.name.lexeme);
+            usage.values = new ArrayList<>();
+            usage.values.add(stmt.initializer);
+            typedVariables.add(usage);
+        }
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -416,6 +664,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         loops.push(stmt);
         resolve(stmt.condition);
         resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
         loops.pop();
         return null;
     }
@@ -424,12 +673,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBreakStmt(Stmt.Break stmt) {
         if (loops.isEmpty()) {
             Lox.error(stmt.keyword, "No enclosing loop");
+            return null;
         }
         if (stmt.label == null) {
+            stmt.loop = loops.peek();
             return null;
         }
-        for (Stmt.While loop : loops) {
-            if (stmt.label.lexeme.equals(loop.label.lexeme)) {
+        for (int i = loops.size() - 1; i >= 0; i--) {
+            Stmt.While loop = loops.get(i);
+            if (loop.label != null && stmt.label.lexeme.equals(loop.label.lexeme)) {
+                stmt.loop = loop;
                 return null;
             }
         }
@@ -119,7 +119,7 @@ class Scanner {
 
         TokenType type = keywords.get(text);
         if (type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(type, null, Strings.intern(text));
     }
 
     private void number() {
@@ -153,7 +153,7 @@ class Scanner {
         advance();
 
         // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        String value = Strings.intern(source.substring(start + 1, current - 1));
         addToken(STRING, value);
     }
 
@@ -199,7 +199,10 @@ class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
+        addToken(type, literal, source.substring(start, current));
+    }
+
+    private void addToken(TokenType type, Object literal, String text) {
         tokens.add(new Token(type, text, literal, line));
     }
 }
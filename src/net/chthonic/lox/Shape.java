@@ -0,0 +1,42 @@
+package net.chthonic.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/* A hidden class for LoxInstance fields. Instances that were given the same
+   fields in the same order share a Shape, which knows the slot each field
+   lives in, so an instance only has to carry an Object[] of values. Adding a
+   field moves an instance to the next Shape along; those transitions are
+   cached, so after the first instance every later one just follows them.
+ */
+class Shape {
+    static final Shape EMPTY = new Shape(new HashMap<>());
+
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    private Shape(Map<String, Integer> slots) {
+        this.slots = slots;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    // The field's slot, or -1 if instances of this shape don't have it.
+    int indexOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    Shape with(String name) {
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<String, Integer> nextSlots = new HashMap<>(slots);
+            nextSlots.put(name, slots.size());
+            next = new Shape(nextSlots);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
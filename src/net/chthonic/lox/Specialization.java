@@ -0,0 +1,22 @@
+package net.chthonic.lox;
+
+// The variants a Binary node can rewrite itself into under the
+// SpecializingInterpreter. A node with no specialization yet hasn't run.
+enum Specialization {
+    NUMBER_ADD,
+    NUMBER_SUBTRACT,
+    NUMBER_MULTIPLY,
+    NUMBER_DIVIDE,
+    NUMBER_GREATER,
+    NUMBER_GREATER_EQUAL,
+    NUMBER_LESS,
+    NUMBER_LESS_EQUAL,
+    NUMBER_EQUAL,
+    NUMBER_NOT_EQUAL,
+    STRING_CONCAT,
+    STRING_EQUAL,
+    STRING_NOT_EQUAL,
+    BOOLEAN_EQUAL,
+    BOOLEAN_NOT_EQUAL,
+    GENERIC
+}
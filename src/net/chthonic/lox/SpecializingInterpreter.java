@@ -0,0 +1,139 @@
+package net.chthonic.lox;
+
+/* Binary nodes rewrite themselves based on the operands they see. The first
+   evaluation picks a variant for the operand types, e.g. NUMBER_ADD for two
+   numbers; after that the node only checks that guess and does the one
+   operation, skipping the operator switch and the general type checks. If
+   the types ever change the node falls back to GENERIC for good, so a site
+   can't flip back and forth.
+
+   The closure tier compiles binary nodes to specialized() as well, so a
+   function keeps the variants it settled on while warming up, and nodes
+   that hadn't run yet still specialize once it's compiled.
+ */
+class SpecializingInterpreter extends Interpreter {
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        Object left = evaluate(expr.left);
+        Object right = evaluate(expr.right);
+        return specialized(expr, left, right);
+    }
+
+    static Object specialized(Expr.Binary expr, Object left, Object right) {
+        Specialization specialization = expr.specialization;
+        if (specialization == null) {
+            specialization = specialize(expr.operator.type, left, right);
+            expr.specialization = specialization;
+        }
+
+        switch (specialization) {
+            case NUMBER_ADD:
+            case NUMBER_SUBTRACT:
+            case NUMBER_MULTIPLY:
+            case NUMBER_DIVIDE:
+            case NUMBER_GREATER:
+            case NUMBER_GREATER_EQUAL:
+            case NUMBER_LESS:
+            case NUMBER_LESS_EQUAL:
+            case NUMBER_EQUAL:
+            case NUMBER_NOT_EQUAL:
+                if (left instanceof Double && right instanceof Double) {
+                    return numbers(specialization, (double)left, (double)right);
+                }
+                break;
+            case STRING_CONCAT:
+                if (left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
+                break;
+            case STRING_EQUAL:
+            case STRING_NOT_EQUAL:
+                if (left instanceof String && right instanceof String) {
+                    return Strings.equal((String)left, (String)right) ==
+                            (specialization == Specialization.STRING_EQUAL);
+                }
+                break;
+            case BOOLEAN_EQUAL:
+            case BOOLEAN_NOT_EQUAL:
+                if (left instanceof Boolean && right instanceof Boolean) {
+                    return left.equals(right) == (specialization == Specialization.BOOLEAN_EQUAL);
+                }
+                break;
+            case GENERIC:
+                return binary(expr.operator, left, right);
+        }
+
+        expr.specialization = Specialization.GENERIC;
+        return binary(expr.operator, left, right);
+    }
+
+    private static Object numbers(Specialization specialization, double left, double right) {
+        switch (specialization) {
+            case NUMBER_ADD: return Numbers.box(left + right);
+            case NUMBER_SUBTRACT: return Numbers.box(left - right);
+            case NUMBER_MULTIPLY: return Numbers.box(left * right);
+            case NUMBER_DIVIDE: return Numbers.box(left / right);
+            case NUMBER_GREATER: return left > right;
+            case NUMBER_GREATER_EQUAL: return left >= right;
+            case NUMBER_LESS: return left < right;
+            case NUMBER_LESS_EQUAL: return left <= right;
+            case NUMBER_EQUAL: return numbersEqual(left, right);
+            case NUMBER_NOT_EQUAL: return !numbersEqual(left, right);
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    // Same answer as isEqual on two Doubles, which tells 0 and -0 apart.
+    private static boolean numbersEqual(double left, double right) {
+        return left == right &&
+                Double.doubleToRawLongBits(left) == Double.doubleToRawLongBits(right);
+    }
+
+    private static Specialization specialize(TokenType operator, Object left, Object right) {
+        boolean numbers = left instanceof Double && right instanceof Double;
+        boolean strings = left instanceof String && right instanceof String;
+        boolean booleans = left instanceof Boolean && right instanceof Boolean;
+
+        switch (operator) {
+            case PLUS:
+                if (numbers) return Specialization.NUMBER_ADD;
+                if (strings) return Specialization.STRING_CONCAT;
+                break;
+            case MINUS:
+                if (numbers) return Specialization.NUMBER_SUBTRACT;
+                break;
+            case STAR:
+                if (numbers) return Specialization.NUMBER_MULTIPLY;
+                break;
+            case SLASH:
+                if (numbers) return Specialization.NUMBER_DIVIDE;
+                break;
+            case GREATER:
+                if (numbers) return Specialization.NUMBER_GREATER;
+                break;
+            case GREATER_EQUAL:
+                if (numbers) return Specialization.NUMBER_GREATER_EQUAL;
+                break;
+            case LESS:
+                if (numbers) return Specialization.NUMBER_LESS;
+                break;
+            case LESS_EQUAL:
+                if (numbers) return Specialization.NUMBER_LESS_EQUAL;
+                break;
+            case EQUAL_EQUAL:
+                if (numbers) return Specialization.NUMBER_EQUAL;
+                if (strings) return Specialization.STRING_EQUAL;
+                if (booleans) return Specialization.BOOLEAN_EQUAL;
+                break;
+            case BANG_EQUAL:
+                if (numbers) return Specialization.NUMBER_NOT_EQUAL;
+                if (strings) return Specialization.STRING_NOT_EQUAL;
+                if (booleans) return Specialization.BOOLEAN_NOT_EQUAL;
+                break;
+        }
+
+        return Specialization.GENERIC;
+    }
+}
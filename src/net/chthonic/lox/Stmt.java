@@ -2,8 +2,8 @@ package net.chthonic.lox;
 
 import java.util.List;
 
-abstract class Stmt {
-  interface Visitor<R> {
+public abstract class Stmt {
+  public interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
@@ -16,19 +16,20 @@ abstract class Stmt {
     R visitWhileStmt(While stmt);
     R visitBreakStmt(Break stmt);
   }
-  static class Block extends Stmt {
+  public static class Block extends Stmt {
     Block(List<Stmt> statements) {
       this.statements = statements;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBlockStmt(this);
     }
 
-    final List<Stmt> statements;
+    public final List<Stmt> statements;
+    boolean scoped;
   }
-  static class Class extends Stmt {
+  public static class Class extends Stmt {
     Class(Token name, List<Expr.Variable> superclasses, List<Stmt.Function> instanceMethods, List<Stmt.Function> classMethods, List<Stmt.Function> getters) {
       this.name = name;
       this.superclasses = superclasses;
@@ -38,29 +39,31 @@ abstract class Stmt {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitClassStmt(this);
     }
 
-    final Token name;
-    final List<Expr.Variable> superclasses;
-    final List<Stmt.Function> instanceMethods;
-    final List<Stmt.Function> classMethods;
-    final List<Stmt.Function> getters;
+    public final Token name;
+    public final List<Expr.Variable> superclasses;
+    public final List<Stmt.Function> instanceMethods;
+    public final List<Stmt.Function> classMethods;
+    public final List<Stmt.Function> getters;
+    boolean boxed;
+    List<Capture> captures;
   }
-  static class Expression extends Stmt {
+  public static class Expression extends Stmt {
     Expression(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitExpressionStmt(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
   }
-  static class Function extends Stmt {
+  public static class Function extends Stmt {
     Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
       this.params = params;
@@ -68,15 +71,21 @@ abstract class Stmt {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitFunctionStmt(this);
     }
 
-    final Token name;
-    final List<Token> params;
-    final List<Stmt> body;
+    public final Token name;
+    public final List<Token> params;
+    public final List<Stmt> body;
+    int calls;
+    CompiledFunction compiled;
+    boolean finalTier;
+    boolean boxed;
+    boolean[] boxedParams;
+    List<Capture> captures;
   }
-  static class If extends Stmt {
+  public static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
       this.condition = condition;
       this.thenBranch = thenBranch;
@@ -84,96 +93,102 @@ abstract class Stmt {
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitIfStmt(this);
     }
 
-    final Expr condition;
-    final Stmt thenBranch;
-    final Stmt elseBranch;
+    public final Expr condition;
+    public final Stmt thenBranch;
+    public final Stmt elseBranch;
   }
-  static class Print extends Stmt {
+  public static class Print extends Stmt {
     Print(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitPrintStmt(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
   }
-  static class PrintAst extends Stmt {
+  public static class PrintAst extends Stmt {
     PrintAst(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitPrintAstStmt(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
   }
-  static class Return extends Stmt {
+  public static class Return extends Stmt {
     Return(Token keyword, Expr value) {
       this.keyword = keyword;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitReturnStmt(this);
     }
 
-    final Token keyword;
-    final Expr value;
+    public final Token keyword;
+    public final Expr value;
   }
-  static class Var extends Stmt {
+  public static class Var extends Stmt {
     Var(Token name, Expr initializer) {
       this.name = name;
       this.initializer = initializer;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVarStmt(this);
     }
 
-    final Token name;
-    final Expr initializer;
+    public final Token name;
+    public final Expr initializer;
+    boolean boxed;
   }
-  static class While extends Stmt {
-    While(Token label, Expr condition, Stmt body) {
+  public static class While extends Stmt {
+    While(Token keyword, Token label, Expr condition, Stmt body, Expr increment) {
+      this.keyword = keyword;
       this.label = label;
       this.condition = condition;
       this.body = body;
+      this.increment = increment;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitWhileStmt(this);
     }
 
-    final Token label;
-    final Expr condition;
-    final Stmt body;
+    public final Token keyword;
+    public final Token label;
+    public final Expr condition;
+    public final Stmt body;
+    public final Expr increment;
   }
-  static class Break extends Stmt {
+  public static class Break extends Stmt {
     Break(Token keyword, Token label) {
       this.keyword = keyword;
       this.label = label;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBreakStmt(this);
     }
 
-    final Token keyword;
-    final Token label;
+    public final Token keyword;
+    public final Token label;
+    While loop;
   }
 
-  abstract <R> R accept(Visitor<R> visitor);
+  public abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,20 @@
+package net.chthonic.lox;
+
+/* Lox strings are plain Java Strings. String literals and identifiers are
+   interned as they're scanned, as are strings the Optimizer folds, so every
+   occurrence of the same text in a script is the same String and comparing
+   them is one identity check.
+
+   Strings built while running, by + or stringify, aren't interned, so
+   equal() still has to compare contents when the identities differ. The VM
+   compares strings with it too.
+ */
+public class Strings {
+    static String intern(String string) {
+        return string.intern();
+    }
+
+    public static boolean equal(String a, String b) {
+        return a == b || a.equals(b);
+    }
+}
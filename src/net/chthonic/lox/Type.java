@@ -0,0 +1,9 @@
+package net.chthonic.lox;
+
+// What TypeInference could prove about every value an expression produces.
+// UNKNOWN is also what an expression has before the pass runs.
+enum Type {
+    NUMBER,
+    STRING,
+    UNKNOWN
+}
@@ -0,0 +1,249 @@
+package net.chthonic.lox;
+
+import java.util.List;
+
+/* Runs after the Resolver and works out which expressions always produce a
+   number, or always a string, recording it in Expr.type. The interpreter and
+   compilers use that to skip type checks and keep numbers unboxed.
+
+   A local declared with var gets the type of everything ever stored in it,
+   which the Resolver collected: its initializer and the value of every
+   assignment to it, wherever they are. That doesn't depend on the order
+   they run in, so it holds inside loops and closures too. Parameters,
+   globals and the like are UNKNOWN and keep their dynamic checks.
+
+   Variables start with no type (null) and can only widen, so going over
+   them until nothing changes settles quickly, even when a variable's type
+   depends on its own, as in i = i + 1.
+ */
+class TypeInference implements Expr.Visitor<Type>, Stmt.Visitor<Void> {
+    private final Resolver resolver;
+
+    TypeInference(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    void infer(List<Stmt> statements) {
+        boolean changed;
+        do {
+            changed = false;
+            for (Resolver.VariableUsage variable : resolver.typedVariables) {
+                Type type = variable.type;
+                for (Expr value : variable.values) {
+                    type = join(type, infer(value));
+                }
+                if (type != variable.type) {
+                    variable.type = type;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        // Now that the variables are settled, go over everything once more
+        // so every node ends up with its final type.
+        walk(statements);
+    }
+
+    private void walk(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private Type infer(Expr expr) {
+        Type type = expr.accept(this);
+        expr.type = type == null ? Type.UNKNOWN : type;
+        return type;
+    }
+
+    // Null means nothing is known to be stored yet, so it gives way to
+    // anything else.
+    private static Type join(Type a, Type b) {
+        if (a == null) return b;
+        if (b == null || a == b) return a;
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitAssignExpr(Expr.Assign expr) {
+        return infer(expr.value);
+    }
+
+    @Override
+    public Type visitTernaryExpr(Expr.Ternary expr) {
+        infer(expr.left);
+        return join(infer(expr.middle), infer(expr.right));
+    }
+
+    @Override
+    public Type visitBinaryExpr(Expr.Binary expr) {
+        Type left = infer(expr.left);
+        Type right = infer(expr.right);
+
+        switch (expr.operator.type) {
+            case MINUS:
+            case SLASH:
+            case STAR:
+                return Type.NUMBER;
+            case PLUS:
+                // Either side being a string makes it a concatenation.
+                if (left == Type.STRING || right == Type.STRING) return Type.STRING;
+                if (left == null || right == null) return null;
+                if (left == Type.NUMBER && right == Type.NUMBER) return Type.NUMBER;
+                return Type.UNKNOWN;
+            case COMMA:
+                return right;
+            default:
+                // Comparisons, which produce booleans.
+                return Type.UNKNOWN;
+        }
+    }
+
+    @Override
+    public Type visitCallExpr(Expr.Call expr) {
+        infer(expr.callee);
+        for (Expr argument : expr.arguments) {
+            infer(argument);
+        }
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitGetExpr(Expr.Get expr) {
+        infer(expr.object);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitGroupingExpr(Expr.Grouping expr) {
+        return infer(expr.expression);
+    }
+
+    @Override
+    public Type visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value instanceof Double) return Type.NUMBER;
+        if (expr.value instanceof String) return Type.STRING;
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitLogicalExpr(Expr.Logical expr) {
+        return join(infer(expr.left), infer(expr.right));
+    }
+
+    @Override
+    public Type visitSetExpr(Expr.Set expr) {
+        infer(expr.object);
+        infer(expr.value);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitSuperExpr(Expr.Super expr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitThisExpr(Expr.This expr) {
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitUnaryExpr(Expr.Unary expr) {
+        infer(expr.right);
+        return expr.operator.type == TokenType.MINUS ? Type.NUMBER : Type.UNKNOWN;
+    }
+
+    @Override
+    public Type visitVariableExpr(Expr.Variable expr) {
+        Resolver.VariableUsage variable = resolver.bindings.get(expr);
+        if (variable == null || variable.values == null) return Type.UNKNOWN;
+        return variable.type;
+    }
+
+    @Override
+    public Type visitLambdaExpr(Expr.Lambda expr) {
+        walk(expr.body);
+        return Type.UNKNOWN;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        walk(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        for (Expr.Variable superclass : stmt.superclasses) {
+            infer(superclass);
+        }
+        for (Stmt.Function method : stmt.instanceMethods) {
+            method.accept(this);
+        }
+        for (Stmt.Function method : stmt.classMethods) {
+            method.accept(this);
+        }
+        for (Stmt.Function getter : stmt.getters) {
+            getter.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        walk(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        infer(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintAstStmt(Stmt.PrintAst stmt) {
+        infer(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) infer(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) infer(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        infer(stmt.condition);
+        stmt.body.accept(this);
+        if (stmt.increment != null) infer(stmt.increment);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        return null;
+    }
+}
@@ -0,0 +1,8 @@
+package net.chthonic.lox.vm;
+
+class CallFrame {
+    ObjClosure closure;
+    int ip;
+    // Index of the frame's slot zero on the VM stack.
+    int slots;
+}
@@ -0,0 +1,651 @@
+package net.chthonic.lox.vm;
+
+import net.chthonic.lox.AstPrinter;
+import net.chthonic.lox.Expr;
+import net.chthonic.lox.Lox;
+import net.chthonic.lox.Stmt;
+import net.chthonic.lox.Token;
+import net.chthonic.lox.TokenType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/* Compiles a resolved syntax tree to bytecode. The Resolver has already
+   reported scoping mistakes, so all this has to do is lay out stack slots and
+   upvalues, and enforce the limits of the one-byte operands.
+ */
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int UINT8_COUNT = 256;
+
+    // Calls whose result is returned as it is, which reuse the caller's frame.
+    private final Set<Expr.Call> tailCalls = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class Loop {
+        final Token label;
+        final int scopeDepth;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(Token label, int scopeDepth) {
+            this.label = label;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        final List<Loop> loops = new ArrayList<>();
+        int scopeDepth = 0;
+
+        FunctionState(FunctionState enclosing, ObjFunction function, String receiver) {
+            this.enclosing = enclosing;
+            this.function = function;
+            // Slot zero holds the callee, or the receiver for methods.
+            locals.add(new Local(receiver, 0));
+        }
+    }
+
+    private FunctionState current = null;
+    // The last token compiled, for error messages and line numbers.
+    private Token previous = null;
+    private boolean hadError = false;
+
+    ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null,
+                new ObjFunction("script", ObjFunction.Kind.SCRIPT, 0), "");
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+
+        ObjFunction function = endFunction();
+        return hadError ? null : function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        namedVariable(expr.name.lexeme, expr.name, true);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.left);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(expr.middle);
+        int endJump = emitJump(OpCode.JUMP);
+
+        patchJump(elseJump);
+        emit(OpCode.POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (expr.operator.type == TokenType.COMMA) {
+            compile(expr.left);
+            emit(OpCode.POP);
+            compile(expr.right);
+            return null;
+        }
+
+        compile(expr.left);
+        compile(expr.right);
+        previous = expr.operator;
+        switch (expr.operator.type) {
+            case GREATER: emit(OpCode.GREATER); break;
+            case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+            case LESS: emit(OpCode.LESS); break;
+            case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+            case MINUS: emit(OpCode.SUBTRACT); break;
+            case PLUS: emit(OpCode.ADD); break;
+            case SLASH: emit(OpCode.DIVIDE); break;
+            case STAR: emit(OpCode.MULTIPLY); break;
+            case BANG_EQUAL: emit(OpCode.NOT_EQUAL); break;
+            case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        previous = expr.paren;
+        emit(tailCalls.contains(expr) ? OpCode.TAIL_CALL : OpCode.CALL, expr.arguments.size());
+        return null;
+    }
+
+    // The same calls the Resolver marks as tail calls.
+    private void markTailCalls(Expr expr) {
+        if (expr instanceof Expr.Call) {
+            tailCalls.add((Expr.Call) expr);
+        } else if (expr instanceof Expr.Grouping) {
+            markTailCalls(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Ternary) {
+            markTailCalls(((Expr.Ternary) expr).middle);
+            markTailCalls(((Expr.Ternary) expr).right);
+        } else if (expr instanceof Expr.Logical) {
+            markTailCalls(((Expr.Logical) expr).right);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        previous = expr.name;
+        emit(OpCode.GET_PROPERTY, identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        previous = expr.token;
+        if (expr.value == null) {
+            emit(OpCode.NIL);
+        } else if (expr.value instanceof Boolean) {
+            emit((boolean) expr.value ? OpCode.TRUE : OpCode.FALSE);
+        } else {
+            emit(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        previous = expr.operator;
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emit(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        previous = expr.name;
+        emit(OpCode.SET_PROPERTY, identifierConstant(expr.name));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable("this", expr.keyword, false);
+        namedVariable("super", expr.keyword, false);
+        previous = expr.method;
+        emit(OpCode.GET_SUPER, identifierConstant(expr.method));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable("this", expr.keyword, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        previous = expr.operator;
+        emit(expr.operator.type == TokenType.MINUS ? OpCode.NEGATE : OpCode.NOT);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name.lexeme, expr.name, false);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        function(ObjFunction.Kind.LAMBDA, "lambda", "", expr.params, expr.body);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        for (Expr.Variable superclass : stmt.superclasses) {
+            compile(superclass);
+        }
+
+        previous = stmt.name;
+        int nameConstant = identifierConstant(stmt.name);
+        emit(OpCode.CLASS, nameConstant);
+        emit((byte) stmt.superclasses.size());
+        if (current.scopeDepth > 0) {
+            addLocal(stmt.name.lexeme, stmt.name);
+        } else {
+            emit(OpCode.DEFINE_GLOBAL, nameConstant);
+        }
+
+        // Methods find "super" the same way the Resolver does: in a scope of
+        // its own around them, holding the class being defined.
+        if (!stmt.superclasses.isEmpty()) {
+            beginScope();
+            namedVariable(stmt.name.lexeme, stmt.name, false);
+            addLocal("super", stmt.name);
+        }
+
+        namedVariable(stmt.name.lexeme, stmt.name, false);
+        Token classInit = null;
+        for (Stmt.Function method : stmt.classMethods) {
+            ObjFunction.Kind kind = ObjFunction.Kind.CLASS_METHOD;
+            if (method.name.lexeme.equals("init")) {
+                kind = ObjFunction.Kind.INITIALIZER;
+                classInit = method.name;
+            }
+            function(kind, method.name.lexeme, "cls", method.params, method.body);
+            emit(OpCode.CLASS_METHOD, identifierConstant(method.name));
+        }
+
+        for (Stmt.Function method : stmt.instanceMethods) {
+            ObjFunction.Kind kind = method.name.lexeme.equals("init") ?
+                    ObjFunction.Kind.INITIALIZER :
+                    ObjFunction.Kind.METHOD;
+            function(kind, method.name.lexeme, "this", method.params, method.body);
+            emit(OpCode.METHOD, identifierConstant(method.name));
+        }
+
+        for (Stmt.Function getter : stmt.getters) {
+            function(ObjFunction.Kind.GETTER, getter.name.lexeme, "this", getter.params, getter.body);
+            emit(OpCode.METHOD, identifierConstant(getter.name));
+        }
+        emit(OpCode.POP);
+
+        if (!stmt.superclasses.isEmpty()) endScope();
+
+        if (classInit != null) {
+            namedVariable(stmt.name.lexeme, stmt.name, false);
+            previous = classInit;
+            emit(OpCode.GET_PROPERTY, identifierConstant(classInit));
+            emit(OpCode.CALL, 0);
+            emit(OpCode.POP);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        previous = stmt.name;
+        if (current.scopeDepth > 0) {
+            // Declared before the body, so the function can call itself.
+            addLocal(stmt.name.lexeme, stmt.name);
+            function(ObjFunction.Kind.FUNCTION, stmt.name.lexeme, "", stmt.params, stmt.body);
+        } else {
+            function(ObjFunction.Kind.FUNCTION, stmt.name.lexeme, "", stmt.params, stmt.body);
+            previous = stmt.name;
+            emit(OpCode.DEFINE_GLOBAL, identifierConstant(stmt.name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+
+        patchJump(thenJump);
+        emit(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintAstStmt(Stmt.PrintAst stmt) {
+        // The tree never changes, so it can be printed now.
+        emit(OpCode.CONSTANT, makeConstant(new AstPrinter().print(stmt.expression)));
+        emit(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        previous = stmt.keyword;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            // Initializers can't return values, so a tail call never has to
+            // return "this" instead.
+            markTailCalls(stmt.value);
+            compile(stmt.value);
+            emit(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(OpCode.NIL);
+        }
+
+        previous = stmt.name;
+        if (current.scopeDepth > 0) {
+            // The initializer's value is already sitting in the new slot.
+            addLocal(stmt.name.lexeme, stmt.name);
+        } else {
+            emit(OpCode.DEFINE_GLOBAL, identifierConstant(stmt.name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop loop = new Loop(stmt.label, current.scopeDepth);
+        current.loops.add(loop);
+
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emit(OpCode.POP);
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(OpCode.POP);
+        }
+        emitLoop(loopStart, stmt.keyword);
+
+        patchJump(exitJump);
+        emit(OpCode.POP);
+        for (int jump : loop.breaks) {
+            patchJump(jump);
+        }
+
+        current.loops.remove(current.loops.size() - 1);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        previous = stmt.keyword;
+        Loop target = null;
+        for (int i = current.loops.size() - 1; i >= 0; i--) {
+            Loop loop = current.loops.get(i);
+            if (stmt.label == null ||
+                    (loop.label != null && loop.label.lexeme.equals(stmt.label.lexeme))) {
+                target = loop;
+                break;
+            }
+        }
+
+        // Discard the locals of the scopes we're jumping out of, but leave
+        // them declared: the code after the break still belongs to them.
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > target.scopeDepth; i--) {
+            emit(locals.get(i).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+        target.breaks.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    private void function(ObjFunction.Kind kind, String name, String receiver,
+                          List<Token> params, List<Stmt> body) {
+        FunctionState state = new FunctionState(current,
+                new ObjFunction(name, kind, params.size()), receiver);
+        current = state;
+        beginScope();
+        for (Token param : params) {
+            addLocal(param.lexeme, param);
+        }
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+        ObjFunction function = endFunction();
+
+        emit(OpCode.CLOSURE, makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emit(upvalue.isLocal ? (byte) 1 : (byte) 0);
+            emit((byte) upvalue.index);
+        }
+    }
+
+    private ObjFunction endFunction() {
+        emitReturn();
+        ObjFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void emitReturn() {
+        if (current.function.kind == ObjFunction.Kind.INITIALIZER) {
+            emit(OpCode.GET_LOCAL, 0);
+        } else {
+            emit(OpCode.NIL);
+        }
+        emit(OpCode.RETURN);
+    }
+
+    private void namedVariable(String name, Token token, boolean assign) {
+        previous = token;
+        byte getOp;
+        byte setOp;
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            getOp = OpCode.GET_LOCAL;
+            setOp = OpCode.SET_LOCAL;
+        } else if ((arg = resolveUpvalue(current, name, token)) != -1) {
+            getOp = OpCode.GET_UPVALUE;
+            setOp = OpCode.SET_UPVALUE;
+        } else {
+            arg = makeConstant(name);
+            getOp = OpCode.GET_GLOBAL;
+            setOp = OpCode.SET_GLOBAL;
+        }
+
+        emit(assign ? setOp : getOp, arg);
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name, Token token) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true, token);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name, token);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false, token);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal, Token token) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+
+        if (state.upvalues.size() == UINT8_COUNT) {
+            error(token, "Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void addLocal(String name, Token token) {
+        if (current.locals.size() == UINT8_COUNT) {
+            error(token, "Too many local variables in function.");
+            return;
+        }
+
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() &&
+                locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emit(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+
+    private int identifierConstant(Token name) {
+        return makeConstant(name.lexeme);
+    }
+
+    private int makeConstant(Object value) {
+        Chunk chunk = current.function.chunk;
+        if (chunk.constants.size() == UINT8_COUNT) {
+            error(previous, "Too many constants in one chunk.");
+            return 0;
+        }
+
+        return chunk.addConstant(value);
+    }
+
+    private void emit(byte b) {
+        current.function.chunk.write(b, previous == null ? 1 : previous.line);
+    }
+
+    private void emit(byte op, int operand) {
+        emit(op);
+        emit((byte) operand);
+    }
+
+    private int emitJump(byte op) {
+        emit(op);
+        emit((byte) 0xff);
+        emit((byte) 0xff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        // -2 to adjust for the bytecode for the jump offset itself.
+        int jump = chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            error(previous, "Too much code to jump over.");
+        }
+
+        chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart, Token keyword) {
+        emit(OpCode.LOOP);
+
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > 0xffff) error(keyword, "Loop body too large.");
+
+        emit((byte) ((offset >> 8) & 0xff));
+        emit((byte) (offset & 0xff));
+    }
+
+    private void error(Token token, String message) {
+        hadError = true;
+        Lox.error(token, message);
+    }
+}
@@ -0,0 +1,117 @@
+package net.chthonic.lox.vm;
+
+import net.chthonic.lox.InheritanceError;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Classes are instances too: class methods live in their fields. Setters
+// are kept by property name as well, inherited ones included, so storing a
+// field doesn't have to build "set_" + name and search the mro for it.
+class ObjClass extends ObjInstance {
+    final String name;
+    private final Map<String, ObjClosure> methods = new HashMap<>();
+    private final Map<String, ObjClosure> setters = new HashMap<>();
+    private final List<ObjClass> mro;
+
+    static final ObjClass Class = new ObjClass("Class");
+
+    private ObjClass(String name) {
+        super(Class);
+        this.name = name;
+        this.mro = Collections.singletonList(this);
+    }
+
+    ObjClass(String name, List<ObjClass> superclasses) throws InheritanceError {
+        super(Class);
+        this.name = name;
+        if (superclasses.isEmpty()) {
+            this.mro = Collections.singletonList(this);
+        } else {
+            this.mro = findMethodResolutionOrder(superclasses);
+        }
+
+        // The superclasses are complete by now, and this class's own
+        // methods come after, so they can override these.
+        for (int i = mro.size() - 1; i > 0; i--) {
+            for (Map.Entry<String, ObjClosure> method : mro.get(i).methods.entrySet()) {
+                addSetter(method.getKey(), method.getValue());
+            }
+        }
+    }
+
+    void addMethod(String name, ObjClosure method) {
+        methods.put(name, method);
+        addSetter(name, method);
+    }
+
+    private void addSetter(String name, ObjClosure method) {
+        if (name.startsWith("set_")) setters.put(name.substring(4), method);
+    }
+
+    // Same C3 linearization as the tree-walker's LoxClass.
+    private List<ObjClass> findMethodResolutionOrder(List<ObjClass> superclasses) throws InheritanceError {
+        ArrayList<ArrayList<ObjClass>> toMerge = new ArrayList<>();
+        for (ObjClass superclass : superclasses) {
+            toMerge.add(new ArrayList<>(superclass.mro));
+        }
+        toMerge.add(new ArrayList<>(superclasses));
+
+        ArrayList<ObjClass> order = new ArrayList<>();
+        order.add(this);
+        while (!toMerge.stream().allMatch(ArrayList::isEmpty)) {
+            ObjClass goodCandidate = null;
+            outer:
+            for (ArrayList<ObjClass> sublist : toMerge) {
+                if (sublist.isEmpty()) continue;
+                ObjClass candidate = sublist.get(0);
+                for (ArrayList<ObjClass> other : toMerge) {
+                    if (other.indexOf(candidate) > 0) {
+                        continue outer;
+                    }
+                }
+                goodCandidate = candidate;
+                break;
+            }
+            if (goodCandidate == null) {
+                throw new InheritanceError();
+            }
+            order.add(goodCandidate);
+            for (ArrayList<ObjClass> sublist : toMerge) {
+                sublist.remove(goodCandidate);
+            }
+        }
+        return order;
+    }
+
+    ObjClosure findMethod(String name) {
+        for (ObjClass ancestor : mro) {
+            ObjClosure method = ancestor.methods.get(name);
+            if (method != null) return method;
+        }
+
+        return null;
+    }
+
+    // The set_name method, or null if assigning name stores a field.
+    ObjClosure findSetter(String name) {
+        return setters.isEmpty() ? null : setters.get(name);
+    }
+
+    ObjClosure findSuperMethod(String name) {
+        for (int i = 1; i < mro.size(); i++) {
+            ObjClosure method = mro.get(i).methods.get(name);
+            if (method != null) return method;
+        }
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
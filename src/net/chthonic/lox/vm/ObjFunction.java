@@ -0,0 +1,32 @@
+package net.chthonic.lox.vm;
+
+class ObjFunction {
+    enum Kind {
+        SCRIPT,
+        FUNCTION,
+        LAMBDA,
+        INITIALIZER,
+        GETTER,
+        METHOD,
+        CLASS_METHOD
+    }
+
+    final String name;
+    final Kind kind;
+    final int arity;
+    int upvalueCount = 0;
+    final Chunk chunk = new Chunk();
+
+    ObjFunction(String name, Kind kind, int arity) {
+        this.name = name;
+        this.kind = kind;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (kind == Kind.SCRIPT) return "<script>";
+        if (kind == Kind.LAMBDA) return "<anonymous fn>";
+        return "<fn " + name + ">";
+    }
+}
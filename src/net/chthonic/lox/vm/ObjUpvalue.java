@@ -0,0 +1,15 @@
+package net.chthonic.lox.vm;
+
+// While open, an upvalue points at a live stack slot; once that slot is
+// popped the value moves into the upvalue itself.
+class ObjUpvalue {
+    int location;
+    Object closed;
+    boolean isClosed = false;
+    ObjUpvalue next;
+
+    ObjUpvalue(int location, ObjUpvalue next) {
+        this.location = location;
+        this.next = next;
+    }
+}
@@ -0,0 +1,47 @@
+package net.chthonic.lox.vm;
+
+// One byte per instruction; operands follow inline.
+final class OpCode {
+    static final byte CONSTANT = 0;       // constant index
+    static final byte NIL = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte POP = 4;
+    static final byte GET_LOCAL = 5;      // slot
+    static final byte SET_LOCAL = 6;      // slot
+    static final byte GET_GLOBAL = 7;     // name constant
+    static final byte DEFINE_GLOBAL = 8;  // name constant
+    static final byte SET_GLOBAL = 9;     // name constant
+    static final byte GET_UPVALUE = 10;   // upvalue index
+    static final byte SET_UPVALUE = 11;   // upvalue index
+    static final byte GET_PROPERTY = 12;  // name constant
+    static final byte SET_PROPERTY = 13;  // name constant
+    static final byte GET_SUPER = 14;     // name constant
+    static final byte EQUAL = 15;
+    static final byte NOT_EQUAL = 16;
+    static final byte GREATER = 17;
+    static final byte GREATER_EQUAL = 18;
+    static final byte LESS = 19;
+    static final byte LESS_EQUAL = 20;
+    static final byte ADD = 21;
+    static final byte SUBTRACT = 22;
+    static final byte MULTIPLY = 23;
+    static final byte DIVIDE = 24;
+    static final byte NOT = 25;
+    static final byte NEGATE = 26;
+    static final byte PRINT = 27;
+    static final byte JUMP = 28;          // 16-bit forward offset
+    static final byte JUMP_IF_FALSE = 29; // 16-bit forward offset
+    static final byte LOOP = 30;          // 16-bit backward offset
+    static final byte CALL = 31;          // argument count
+    static final byte CLOSURE = 32;       // function constant, then (isLocal, index) per upvalue
+    static final byte CLOSE_UPVALUE = 33;
+    static final byte RETURN = 34;
+    static final byte CLASS = 35;         // name constant, superclass count
+    static final byte METHOD = 36;        // name constant
+    static final byte CLASS_METHOD = 37;  // name constant
+    static final byte TAIL_CALL = 38;     // argument count
+
+    private OpCode() {
+    }
+}
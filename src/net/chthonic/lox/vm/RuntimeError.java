@@ -0,0 +1,12 @@
+package net.chthonic.lox.vm;
+
+class RuntimeError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    // Filled in by the VM from the instruction that failed.
+    int line = -1;
+
+    RuntimeError(String message) {
+        super(message);
+    }
+}
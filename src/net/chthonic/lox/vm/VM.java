@@ -0,0 +1,525 @@
+package net.chthonic.lox.vm;
+
+import net.chthonic.lox.InheritanceError;
+import net.chthonic.lox.Lox;
+import net.chthonic.lox.Stmt;
+import net.chthonic.lox.Strings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/* A stack machine for the bytecode the Compiler produces. Lox calls push a
+   CallFrame and carry on in the same loop; only getters and setters, which
+   run in the middle of an instruction, re-enter run().
+ */
+public class VM {
+
+    private final Map<String, Object> globals = new HashMap<>();
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private final int maxFrames;
+    // Sorted by stack slot, highest first.
+    private ObjUpvalue openUpvalues = null;
+
+    public VM(int maxFrames) {
+        this.maxFrames = maxFrames;
+        globals.put("clock", new ObjNative(0, (stack, args) ->
+                (double)System.currentTimeMillis() / 1000.0));
+    }
+
+    public void interpret(List<Stmt> statements) {
+        ObjFunction function = new Compiler().compile(statements);
+        if (function == null) return;
+
+        ObjClosure closure = new ObjClosure(function);
+        push(closure);
+        try {
+            call(closure, 0);
+            run(0);
+            pop();
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error.line, error.getMessage());
+            resetStack();
+        }
+    }
+
+    // Runs until the frame that is on top when we start returns, and leaves
+    // its result on the stack. TAIL_CALL falls through to CALL for callees
+    // it can't replace the frame with.
+    @SuppressWarnings("fallthrough")
+    private void run(int baseFrame) {
+        CallFrame frame = frames[frameCount - 1];
+        ObjClosure closure = frame.closure;
+        Chunk chunk = closure.function.chunk;
+        byte[] code = chunk.code;
+        int ip = frame.ip;
+        int base = frame.slots;
+
+        try {
+            for (;;) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT:
+                        push(chunk.constants.get(code[ip++] & 0xff));
+                        break;
+                    case OpCode.NIL: push(null); break;
+                    case OpCode.TRUE: push(true); break;
+                    case OpCode.FALSE: push(false); break;
+                    case OpCode.POP: stackTop--; break;
+                    case OpCode.GET_LOCAL:
+                        push(stack[base + (code[ip++] & 0xff)]);
+                        break;
+                    case OpCode.SET_LOCAL:
+                        stack[base + (code[ip++] & 0xff)] = stack[stackTop - 1];
+                        break;
+                    case OpCode.GET_GLOBAL: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        Object value = globals.get(name);
+                        if (value == null && !globals.containsKey(name)) {
+                            throw new RuntimeError("Undefined variable '" + name + "'.");
+                        }
+                        push(value);
+                        break;
+                    }
+                    case OpCode.DEFINE_GLOBAL: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        globals.put(name, pop());
+                        break;
+                    }
+                    case OpCode.SET_GLOBAL: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        if (!globals.containsKey(name)) {
+                            throw new RuntimeError("Undefined variable '" + name + "'.");
+                        }
+                        globals.put(name, stack[stackTop - 1]);
+                        break;
+                    }
+                    case OpCode.GET_UPVALUE: {
+                        ObjUpvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+                        push(upvalue.isClosed ? upvalue.closed : stack[upvalue.location]);
+                        break;
+                    }
+                    case OpCode.SET_UPVALUE: {
+                        ObjUpvalue upvalue = closure.upvalues[code[ip++] & 0xff];
+                        if (upvalue.isClosed) {
+                            upvalue.closed = stack[stackTop - 1];
+                        } else {
+                            stack[upvalue.location] = stack[stackTop - 1];
+                        }
+                        break;
+                    }
+                    case OpCode.GET_PROPERTY: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        if (!(stack[stackTop - 1] instanceof ObjInstance)) {
+                            throw new RuntimeError("Only instances have properties.");
+                        }
+
+                        ObjInstance instance = (ObjInstance) stack[stackTop - 1];
+                        Object value = instance.fields.get(name);
+                        if (value == null && !instance.fields.containsKey(name)) {
+                            ObjClosure method = instance.klass.findMethod(name);
+                            if (method == null) {
+                                throw new RuntimeError("Undefined property '" + name + "'.");
+                            }
+                            value = new ObjBoundMethod(instance, method);
+                        }
+
+                        stack[stackTop - 1] = value;
+                        if (isGetter(value)) {
+                            // The getter's frame returns its result right where
+                            // the property value belongs.
+                            frame.ip = ip;
+                            callValue(value, 0);
+                            frame = frames[frameCount - 1];
+                            closure = frame.closure;
+                            chunk = closure.function.chunk;
+                            code = chunk.code;
+                            ip = frame.ip;
+                            base = frame.slots;
+                        }
+                        break;
+                    }
+                    case OpCode.SET_PROPERTY: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        if (!(stack[stackTop - 2] instanceof ObjInstance)) {
+                            throw new RuntimeError("Only instances have fields.");
+                        }
+
+                        ObjInstance instance = (ObjInstance) stack[stackTop - 2];
+                        Object value = stack[stackTop - 1];
+                        ObjClosure setter = instance.klass.findSetter(name);
+                        if (setter != null) {
+                            // Whatever the setter returns, the assignment
+                            // evaluates to the assigned value.
+                            frame.ip = ip;
+                            call(setter, 1);
+                            run(frameCount - 1);
+                            pop();
+                        } else {
+                            instance.fields.put(name, value);
+                            stackTop -= 2;
+                        }
+                        push(value);
+                        break;
+                    }
+                    case OpCode.GET_SUPER: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        ObjClass klass = (ObjClass) pop();
+                        ObjClosure method = klass.findSuperMethod(name);
+                        if (method == null) {
+                            throw new RuntimeError("Undefined property '" + name + "'.");
+                        }
+                        stack[stackTop - 1] = new ObjBoundMethod(stack[stackTop - 1], method);
+                        break;
+                    }
+                    case OpCode.EQUAL: {
+                        Object b = pop();
+                        stack[stackTop - 1] = isEqual(stack[stackTop - 1], b);
+                        break;
+                    }
+                    case OpCode.NOT_EQUAL: {
+                        Object b = pop();
+                        stack[stackTop - 1] = !isEqual(stack[stackTop - 1], b);
+                        break;
+                    }
+                    case OpCode.GREATER:
+                        checkNumberOperands();
+                        stackTop--;
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] > (double) stack[stackTop];
+                        break;
+                    case OpCode.GREATER_EQUAL:
+                        checkNumberOperands();
+                        stackTop--;
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] >= (double) stack[stackTop];
+                        break;
+                    case OpCode.LESS:
+                        checkNumberOperands();
+                        stackTop--;
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] < (double) stack[stackTop];
+                        break;
+                    case OpCode.LESS_EQUAL:
+                        checkNumberOperands();
+                        stackTop--;
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] <= (double) stack[stackTop];
+                        break;
+                    case OpCode.ADD: {
+                        Object b = stack[stackTop - 1];
+                        Object a = stack[stackTop - 2];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[stackTop - 2] = (double) a + (double) b;
+                        } else if (a instanceof String || b instanceof String) {
+                            stack[stackTop - 2] = stringify(a) + stringify(b);
+                        } else {
+                            throw new RuntimeError("Operands must be two numbers or two strings.");
+                        }
+                        stackTop--;
+                        break;
+                    }
+                    case OpCode.SUBTRACT:
+                        checkNumberOperands();
+                        stackTop--;
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] - (double) stack[stackTop];
+                        break;
+                    case OpCode.MULTIPLY:
+                        checkNumberOperands();
+                        stackTop--;
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] * (double) stack[stackTop];
+                        break;
+                    case OpCode.DIVIDE:
+                        checkNumberOperands();
+                        stackTop--;
+                        stack[stackTop - 1] = (double) stack[stackTop - 1] / (double) stack[stackTop];
+                        break;
+                    case OpCode.NOT:
+                        stack[stackTop - 1] = !isTruthy(stack[stackTop - 1]);
+                        break;
+                    case OpCode.NEGATE:
+                        if (!(stack[stackTop - 1] instanceof Double)) {
+                            throw new RuntimeError("Operand must be a number.");
+                        }
+                        stack[stackTop - 1] = -(double) stack[stackTop - 1];
+                        break;
+                    case OpCode.PRINT:
+                        System.out.println(stringify(pop()));
+                        break;
+                    case OpCode.JUMP:
+                        ip += 2;
+                        ip += ((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff);
+                        break;
+                    case OpCode.JUMP_IF_FALSE:
+                        ip += 2;
+                        if (!isTruthy(stack[stackTop - 1])) {
+                            ip += ((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff);
+                        }
+                        break;
+                    case OpCode.LOOP:
+                        ip += 2;
+                        ip -= ((code[ip - 2] & 0xff) << 8) | (code[ip - 1] & 0xff);
+                        break;
+                    case OpCode.TAIL_CALL: {
+                        int argCount = code[ip] & 0xff;
+                        Object callee = stack[stackTop - 1 - argCount];
+                        if (callee instanceof ObjClosure || callee instanceof ObjBoundMethod) {
+                            // The callee and its arguments take over this
+                            // frame's slots and the frame itself.
+                            closeUpvalues(base);
+                            System.arraycopy(stack, stackTop - 1 - argCount, stack, base, argCount + 1);
+                            stackTop = base + argCount + 1;
+                            frameCount--;
+                            callValue(callee, argCount);
+                            frame = frames[frameCount - 1];
+                            closure = frame.closure;
+                            chunk = closure.function.chunk;
+                            code = chunk.code;
+                            ip = frame.ip;
+                            base = frame.slots;
+                            break;
+                        }
+                        // Anything else is an ordinary call, and the RETURN
+                        // after it returns the result.
+                    }
+                    case OpCode.CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        callValue(stack[stackTop - 1 - argCount], argCount);
+                        frame = frames[frameCount - 1];
+                        closure = frame.closure;
+                        chunk = closure.function.chunk;
+                        code = chunk.code;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        break;
+                    }
+                    case OpCode.CLOSURE: {
+                        ObjFunction function = (ObjFunction) chunk.constants.get(code[ip++] & 0xff);
+                        ObjClosure created = new ObjClosure(function);
+                        push(created);
+                        for (int i = 0; i < created.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = code[ip++] & 0xff;
+                            created.upvalues[i] = isLocal ?
+                                    captureUpvalue(base + index) :
+                                    closure.upvalues[index];
+                        }
+                        break;
+                    }
+                    case OpCode.CLOSE_UPVALUE:
+                        closeUpvalues(stackTop - 1);
+                        stackTop--;
+                        break;
+                    case OpCode.RETURN: {
+                        Object result = pop();
+                        closeUpvalues(base);
+                        frameCount--;
+                        stackTop = base;
+                        push(result);
+                        if (frameCount == baseFrame) return;
+
+                        frame = frames[frameCount - 1];
+                        closure = frame.closure;
+                        chunk = closure.function.chunk;
+                        code = chunk.code;
+                        ip = frame.ip;
+                        base = frame.slots;
+                        break;
+                    }
+                    case OpCode.CLASS: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        int count = code[ip++] & 0xff;
+                        List<ObjClass> superclasses = new ArrayList<>(count);
+                        for (int i = count; i > 0; i--) {
+                            if (!(stack[stackTop - i] instanceof ObjClass)) {
+                                throw new RuntimeError("Superclass must be a class.");
+                            }
+                            superclasses.add((ObjClass) stack[stackTop - i]);
+                        }
+                        stackTop -= count;
+
+                        try {
+                            push(new ObjClass(name, superclasses));
+                        } catch (InheritanceError e) {
+                            throw new RuntimeError("Unable to resolve multiple inheritance.");
+                        }
+                        break;
+                    }
+                    case OpCode.METHOD: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        ObjClass klass = (ObjClass) stack[stackTop - 2];
+                        klass.addMethod(name, (ObjClosure) pop());
+                        break;
+                    }
+                    case OpCode.CLASS_METHOD: {
+                        String name = (String) chunk.constants.get(code[ip++] & 0xff);
+                        ObjClass klass = (ObjClass) stack[stackTop - 2];
+                        klass.fields.put(name, new ObjBoundMethod(klass, (ObjClosure) pop()));
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeError error) {
+            if (error.line < 0) error.line = chunk.lines[ip - 1];
+            throw error;
+        }
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure) callee, argCount);
+            return;
+        }
+
+        if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod) callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+            return;
+        }
+
+        if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass) callee;
+            stack[stackTop - argCount - 1] = new ObjInstance(klass);
+            ObjClosure initializer = klass.findMethod("init");
+            if (initializer != null) {
+                call(initializer, argCount);
+            } else if (argCount != 0) {
+                throw new RuntimeError("Expected 0 arguments but got " + argCount + ".");
+            }
+            return;
+        }
+
+        if (callee instanceof ObjNative) {
+            ObjNative function = (ObjNative) callee;
+            if (argCount != function.arity) {
+                throw new RuntimeError("Expected " + function.arity +
+                        " arguments but got " + argCount + ".");
+            }
+            Object result = function.function.call(stack, stackTop - argCount);
+            stackTop -= argCount + 1;
+            push(result);
+            return;
+        }
+
+        throw new RuntimeError("Can only call functions and classes.");
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw new RuntimeError("Expected " + closure.function.arity +
+                    " arguments but got " + argCount + ".");
+        }
+
+        if (frameCount == maxFrames) {
+            throw new RuntimeError("Stack overflow.");
+        }
+
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        if (frames[frameCount] == null) frames[frameCount] = new CallFrame();
+
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+    }
+
+    private ObjUpvalue captureUpvalue(int location) {
+        ObjUpvalue prevUpvalue = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            prevUpvalue = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.location == location) {
+            return upvalue;
+        }
+
+        ObjUpvalue createdUpvalue = new ObjUpvalue(location, upvalue);
+        if (prevUpvalue == null) {
+            openUpvalues = createdUpvalue;
+        } else {
+            prevUpvalue.next = createdUpvalue;
+        }
+
+        return createdUpvalue;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.isClosed = true;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private boolean isGetter(Object value) {
+        return value instanceof ObjBoundMethod &&
+                ((ObjBoundMethod) value).method.function.kind == ObjFunction.Kind.GETTER;
+    }
+
+    private void checkNumberOperands() {
+        if (stack[stackTop - 1] instanceof Double && stack[stackTop - 2] instanceof Double) return;
+
+        throw new RuntimeError("Operands must be numbers.");
+    }
+
+    private void push(Object value) {
+        if (stackTop == stack.length) {
+            stack = Arrays.copyOf(stack, stackTop * 2);
+        }
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        return stack[--stackTop];
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, stackTop, null);
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean)object;
+        return true;
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        // nil is only equal to nil.
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+
+        if (a instanceof Double && ((Double) a).isNaN()) {
+            return false;
+        }
+        if (a instanceof String) {
+            return b instanceof String && Strings.equal((String) a, (String) b);
+        }
+
+        return a.equals(b);
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) return "nil";
+
+        // Hack. Work around Java adding ".0" to integer-valued doubles.
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+
+        return object.toString();
+    }
+}
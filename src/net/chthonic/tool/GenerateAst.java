@@ -13,43 +13,49 @@ public class GenerateAst {
             System.exit(1);
         }
         String outputDir = args[0];
-        defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
+        // Filled in by TypeInference.
+        defineAst(outputDir, "Expr", "Type type = Type.UNKNOWN", Arrays.asList(
+                "Assign   : Token name, Expr value | int depth = -1, int slot, boolean boxed, Cell global",
                 "Ternary  : Expr left, Token operator1, Expr middle, Token operator2, Expr right",
-                "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+                "Binary   : Expr left, Token operator, Expr right | Specialization specialization",
+                "Call     : Expr callee, Token paren, List<Expr> arguments" +
+                        " | InlineCache cache = new InlineCache(), boolean isTailCall",
+                "Get      : Expr object, Token name | InlineCache cache = new InlineCache()",
                 "Grouping : Expr expression",
-                "Literal  : Object value",
+                "Literal  : Object value, Token token",
                 "Logical  : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
+                "Set      : Expr object, Token name, Expr value | InlineCache cache = new InlineCache()",
+                "Super    : Token keyword, Token method" +
+                        " | int depth = -1, int slot, int receiverDepth, int receiverSlot",
+                "This     : Token keyword | int depth = -1, int slot",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name",
-                "Lambda   : List<Token> params, List<Stmt> body"
+                "Variable : Token name | int depth = -1, int slot, boolean boxed, Cell global",
+                "Lambda   : List<Token> params, List<Stmt> body" +
+                        " | boolean[] boxedParams, List<Capture> captures"
                 ));
 
-        defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
+        defineAst(outputDir, "Stmt", null, Arrays.asList(
+                "Block      : List<Stmt> statements | boolean scoped",
                 "Class      : Token name, List<Expr.Variable> superclasses," +
                         " List<Stmt.Function> instanceMethods," +
                         " List<Stmt.Function> classMethods," +
-                        " List<Stmt.Function> getters",
+                        " List<Stmt.Function> getters | boolean boxed, List<Capture> captures",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body" +
+                        " | int calls, CompiledFunction compiled, boolean finalTier," +
+                        " boolean boxed, boolean[] boxedParams, List<Capture> captures",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "PrintAst   : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Token label, Expr condition, Stmt body",
-                "Break      : Token keyword, Token label"
+                "Var        : Token name, Expr initializer | boolean boxed",
+                "While      : Token keyword, Token label, Expr condition, Stmt body, Expr increment",
+                "Break      : Token keyword, Token label | While loop"
         ));
     }
 
     private static void defineAst(
-            String outputDir, String baseName, List<String> types)
+            String outputDir, String baseName, String baseField, List<String> types)
             throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, StandardCharsets.UTF_8);
@@ -58,10 +64,15 @@ public class GenerateAst {
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        writer.println("public abstract class " + baseName + " {");
 
         defineVisitor(writer, baseName, types);
 
+        // A field every node has, filled in by a later pass like the ones after '|'.
+        if (baseField != null) {
+            writer.println("  " + baseField + ";");
+        }
+
         // The AST classes.
         for (String type : types) {
             String className = type.split(":")[0].trim();
@@ -71,7 +82,7 @@ public class GenerateAst {
 
         // The base accept() method.
         writer.println();
-        writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+        writer.println("  public abstract <R> R accept(Visitor<R> visitor);");
 
         writer.println("}");
         writer.close();
@@ -79,8 +90,13 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
-        writer.println("  static class " + className + " extends " +
+            String className, String fieldSpec) {
+        // Fields after a '|' aren't constructor arguments; later passes fill them in.
+        String fieldList = fieldSpec.split("\\|")[0].trim();
+        String[] mutableFields = fieldSpec.contains("|") ?
+                fieldSpec.split("\\|")[1].trim().split(", ") : new String[0];
+
+        writer.println("  public static class " + className + " extends " +
                 baseName + " {");
 
         // Constructor.
@@ -98,7 +114,7 @@ public class GenerateAst {
         // Visitor pattern.
         writer.println();
         writer.println("    @Override");
-        writer.println("    <R> R accept(Visitor<R> visitor) {");
+        writer.println("    public <R> R accept(Visitor<R> visitor) {");
         writer.println("      return visitor.visit" +
                 className + baseName + "(this);");
         writer.println("    }");
@@ -106,7 +122,10 @@ public class GenerateAst {
         // Fields.
         writer.println();
         for (String field : fields) {
-            writer.println("    final " + field + ";");
+            writer.println("    public final " + field + ";");
+        }
+        for (String field : mutableFields) {
+            writer.println("    " + field + ";");
         }
 
         writer.println("  }");
@@ -114,7 +133,7 @@ public class GenerateAst {
 
     private static void defineVisitor(
             PrintWriter writer, String baseName, List<String> types) {
-        writer.println("  interface Visitor<R> {");
+        writer.println("  public interface Visitor<R> {");
 
         for (String type : types) {
             String typeName = type.split(":")[0].trim();
@@ -5,19 +5,23 @@ import sys
 from collections import defaultdict
 
 
-def run_one(lox):
+def run_one(lox, options):
     expected = ""
+    options = list(options)
     with open(lox) as loxfile:
         for line in loxfile.readlines():
             parts = line.split('// expect: ')
             if len(parts) == 2:
                 expected += parts[1]
+            # A file can ask for Lox flags of its own, e.g. // args: --max-depth=10
+            if line.startswith('// args: '):
+                options += line[len('// args: '):].split()
 
     print(f"Running {lox}... ", end="", flush=True)
     completed = subprocess.run(["/Users/aneel/Library/Java/JavaVirtualMachines/openjdk-14/Contents/Home/bin/java",
                    "-classpath", "out/production/jlox",
                    "net.chthonic.lox.Lox",
-                   lox], capture_output=True, text=True);
+                   *options, lox], capture_output=True, text=True);
     output = completed.stdout + completed.stderr
     if output == expected:
         print("PASS")
@@ -34,6 +38,11 @@ def run_one(lox):
 
 if __name__ == '__main__':
     results = defaultdict(int)
-    for lox in sys.argv[1:]:
-        results[run_one(lox)] += 1
+    args = sys.argv[1:]
+    # Leading --flags are passed through to Lox, e.g. test.py --vm test/*.lox
+    options = []
+    while args and args[0].startswith("--"):
+        options.append(args.pop(0))
+    for lox in args:
+        results[run_one(lox, options)] += 1
     [print(f"{k}\t{v}") for (k, v) in results.items()]
\ No newline at end of file